@@ -1,228 +1,4966 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.util.stream.IntStream;
 
 public class Main {
     // Abstract base class for all vehicles in the rental system
     static abstract class Vehicle {
+        // Rental state, changed with compare-and-set so only one caller can reserve or retire a vehicle
+        private static final int AVAILABLE = 0;
+        private static final int RENTED = 1;
+        private static final int REMOVED = 2;
+
+        private int id;
+        private int slot = -1;
         private String model;
         private String brand;
         private double rentalRate;
-        private boolean isAvailable;
-        private User renter;
+        private final AtomicInteger state;
+        private volatile User renter;
+        // Created on first booking; most vehicles never need one
+        private BookingCalendar calendar;
+
+        public Vehicle(String model, String brand, double rentalRate) {
+            this.model = model;
+            this.brand = brand;
+            this.rentalRate = rentalRate;
+            this.state = new AtomicInteger(AVAILABLE);
+            this.renter = null;
+        }
+
+        // For views whose fields and state live in a VehicleStore; they override every accessor
+        Vehicle() {
+            this.state = null;
+        }
+
+        public abstract double calculateRentalCost(int days);
+
+        public abstract boolean isMotorcycle();
+
+        // The optional extra: AC for a car, a helmet for a motorcycle
+        public abstract boolean hasAddOn();
+
+        public int getId() { return id; }
+        void setId(int id) { this.id = id; }
+        int getSlot() { return slot; }
+        void setSlot(int slot) { this.slot = slot; }
+        public String getModel() { return model; }
+        public String getBrand() { return brand; }
+        public double getRentalRate() { return rentalRate; }
+        // State and renter change only through tryReserve, release and tryRetire
+        public boolean isAvailable() { return state.get() == AVAILABLE; }
+        public User getRenter() { return renter; }
+
+        // Atomically claims an available vehicle for the given renter
+        boolean tryReserve(User renter) {
+            if (state.compareAndSet(AVAILABLE, RENTED)) {
+                this.renter = renter;
+                return true;
+            }
+            return false;
+        }
+
+        void release() {
+            renter = null;
+            state.set(AVAILABLE);
+        }
+
+        // Atomically takes an available vehicle out of service so it can no longer be reserved
+        boolean tryRetire() {
+            return state.compareAndSet(AVAILABLE, REMOVED);
+        }
+
+        boolean isRetired() { return state.get() == REMOVED; }
+
+        // The vehicle's bookings; callers synchronize on the returned calendar
+        synchronized BookingCalendar getCalendar() {
+            if (calendar == null) calendar = new BookingCalendar();
+            return calendar;
+        }
+
+        synchronized boolean hasCalendar() { return calendar != null; }
+
+        @Override
+        public String toString() {
+            return getBrand() + " " + getModel() + " (Rate: $" + getRentalRate() + "/day)";
+        }
+    }
+
+    // Car implementation with AC feature
+    static class Car extends Vehicle {
+        private boolean hasAC;
+
+        public Car(String model, String brand, double rentalRate, boolean hasAC) {
+            super(model, brand, rentalRate);
+            this.hasAC = hasAC;
+        }
+
+        // Priced by the default pricing engine, AC charge included
+        @Override
+        public double calculateRentalCost(int days) {
+            return PricingEngine.DEFAULT.quote(this, days).getTotal();
+        }
+
+        @Override
+        public boolean isMotorcycle() { return false; }
+
+        @Override
+        public boolean hasAddOn() { return hasAC; }
+
+        public boolean hasAC() {
+            return hasAC;
+        }
+    }
+
+    // Motorcycle implementation with optional helmet rental
+    static class Motorcycle extends Vehicle {
+        private boolean hasHelmet;
+
+        public Motorcycle(String model, String brand, double rentalRate, boolean hasHelmet) {
+            super(model, brand, rentalRate);
+            this.hasHelmet = hasHelmet;
+        }
+
+        // Priced by the default pricing engine; the helmet's share of the total is reported separately
+        @Override
+        public double calculateRentalCost(int days) {
+            Quote quote = PricingEngine.DEFAULT.quote(this, days);
+            return quote.getTotal() - quote.shareOf(PricingEngine.HELMET_CHARGE);
+        }
+
+        public double getHelmetCost(int days) {
+            return PricingEngine.DEFAULT.quote(this, days).shareOf(PricingEngine.HELMET_CHARGE);
+        }
+
+        @Override
+        public boolean isMotorcycle() { return true; }
+
+        @Override
+        public boolean hasAddOn() { return hasHelmet; }
+
+        public boolean hasHelmet() {
+            return hasHelmet;
+        }
+    }
+
+    // User class managing authentication and rental status
+    static class User {
+        private String username;
+        // Either a PasswordHasher record or, for accounts not yet migrated, the plaintext password
+        volatile String password;
+        private final AtomicInteger activeRentals;
+
+        public User(String username, String password) {
+            this.username = username;
+            this.password = password;
+            this.activeRentals = new AtomicInteger();
+        }
+
+        public boolean hasActiveRental() { return activeRentals.get() > 0; }
+        public int getActiveRentalCount() { return activeRentals.get(); }
+
+        // Atomically claims one of the user's rental slots, up to the given limit
+        boolean tryStartRental(int maxActiveRentals) {
+            while (true) {
+                int current = activeRentals.get();
+                if (current >= maxActiveRentals) return false;
+                if (activeRentals.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void endRental() {
+            activeRentals.decrementAndGet();
+        }
+        
+        public boolean authenticate(String password, PasswordHasher hasher) {
+            return hasher.verify(password, this.password);
+        }
+
+        public String getUsername() { return username; }
+
+        // The "username:password" line stored in users.txt and the user journal
+        String toRecord() { return username + ":" + password; }
+    }
+
+    // Salted PBKDF2 password hashing. Stored passwords carry a format version:
+    // "$1$<iterations>$<salt>$<hash>" (Base64) is PBKDF2-HMAC-SHA256, and anything else is a
+    // legacy plaintext entry that is rehashed after its next successful login.
+    // Hashing runs on a small bounded pool, so a login storm queues there instead of taking
+    // every core from rental operations; when the queue is full the request fails fast.
+    static class PasswordHasher {
+        static final String VERSION_PREFIX = "$1$";
+        private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+        private static final int SALT_BYTES = 16;
+        private static final int HASH_BITS = 256;
+
+        private final int iterations;
+        private final long timeoutMillis;
+        private final ThreadPoolExecutor pool;
+        private final SecureRandom random = new SecureRandom();
+
+        public PasswordHasher(int iterations, int threads, int queueSize, long timeoutMillis) {
+            this.iterations = iterations;
+            this.timeoutMillis = timeoutMillis;
+            this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), r -> {
+                        Thread t = new Thread(r, "password-hasher");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+
+        // Work factor and pool sizing come from the rental.hash.* system properties
+        public static PasswordHasher fromSystemProperties() {
+            int cores = Runtime.getRuntime().availableProcessors();
+            return new PasswordHasher(
+                    Integer.getInteger("rental.hash.iterations", 120_000),
+                    Integer.getInteger("rental.hash.threads", Math.max(1, cores / 2)),
+                    Integer.getInteger("rental.hash.queue", 256),
+                    Long.getLong("rental.hash.timeoutMs", 2_000L));
+        }
+
+        public String hash(String password) {
+            byte[] salt = new byte[SALT_BYTES];
+            random.nextBytes(salt);
+            Base64.Encoder encoder = Base64.getEncoder();
+            return VERSION_PREFIX + iterations + "$" + encoder.encodeToString(salt) + "$"
+                    + encoder.encodeToString(derive(password, salt, iterations, HASH_BITS));
+        }
+
+        public boolean verify(String password, String stored) {
+            if (!stored.startsWith(VERSION_PREFIX)) {
+                return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                        password.getBytes(StandardCharsets.UTF_8));
+            }
+            try {
+                String[] parts = stored.split("\\$");
+                if (parts.length != 5) return false;
+                int storedIterations = Integer.parseInt(parts[2]);
+                byte[] salt = Base64.getDecoder().decode(parts[3]);
+                byte[] expected = Base64.getDecoder().decode(parts[4]);
+                return MessageDigest.isEqual(derive(password, salt, storedIterations, expected.length * 8), expected);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        // Plaintext entries and hashes made with a different work factor get upgraded on login
+        public boolean needsRehash(String stored) {
+            return !stored.startsWith(VERSION_PREFIX + iterations + "$");
+        }
+
+        // Runs a hashing task on the bounded pool; null if the pool is saturated or the task times out
+        public <T> T runBounded(Callable<T> task) {
+            Future<T> future;
+            try {
+                future = pool.submit(task);
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        private static byte[] derive(String password, byte[] salt, int iterations, int bits) {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, bits);
+            try {
+                return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM + " is not available", e);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+    }
+
+    // Loads "username:password" files by memory-mapping them and scanning the bytes for ':' and
+    // '\n' directly, without per-line strings or split(). Large files are cut at line boundaries
+    // into chunks that are parsed in parallel; a file whose later lines must override earlier
+    // ones (the journal) is parsed chunk by chunk in order instead.
+    static class UserFileLoader {
+        private static final long MIN_PARALLEL_CHUNK = 1 << 20;
+        private static final long MAX_CHUNK = Integer.MAX_VALUE;
+
+        static class Result {
+            final long records;
+            final long validLength;
+
+            Result(long records, long validLength) {
+                this.records = records;
+                this.validLength = validLength;
+            }
+        }
+
+        // validLength is where the last complete line ends; an unterminated final line is kept
+        // only when keepUnterminatedTail is set, since in the journal it means a torn write
+        static Result load(Path file, Map<String, User> users, boolean parallel, boolean keepUnterminatedTail)
+                throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int chunks = parallel
+                        ? (int) Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, size / MIN_PARALLEL_CHUNK))
+                        : 1;
+                chunks = (int) Math.max(chunks, size / MAX_CHUNK + 1);
+
+                long[] bounds = new long[chunks + 1];
+                bounds[chunks] = size;
+                for (int i = 1; i < chunks; i++) {
+                    bounds[i] = Math.max(bounds[i - 1], nextLineStart(channel, size * i / chunks, size));
+                }
+
+                int lastChunk = chunks - 1;
+                Result[] results = new Result[chunks];
+                if (parallel) {
+                    // snapshot lines are unique per user, so chunks can land in any order
+                    try {
+                        IntStream.range(0, chunks).parallel().forEach(i -> {
+                            try {
+                                results[i] = parseChunk(channel, bounds[i], bounds[i + 1],
+                                        keepUnterminatedTail && i == lastChunk, users);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                } else {
+                    for (int i = 0; i < chunks; i++) {
+                        results[i] = parseChunk(channel, bounds[i], bounds[i + 1],
+                                keepUnterminatedTail && i == lastChunk, users);
+                    }
+                }
+
+                long records = 0;
+                for (Result result : results) records += result.records;
+                return new Result(records, results[lastChunk].validLength);
+            }
+        }
+
+        private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            long pos = from;
+            while (pos < size) {
+                probe.clear();
+                int n = channel.read(probe, pos);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') return pos + i + 1;
+                }
+                pos += n;
+            }
+            return size;
+        }
+
+        private static Result parseChunk(FileChannel channel, long start, long end, boolean keepTail,
+                                         Map<String, User> users) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int limit = buffer.limit();
+            int lineStart = 0;
+            int colon = -1;
+            int colons = 0;
+            long records = 0;
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == ':') {
+                    if (colons++ == 0) colon = i;
+                } else if (b == '\n') {
+                    if (addRecord(buffer, lineStart, colon, colons, i, users)) records++;
+                    lineStart = i + 1;
+                    colon = -1;
+                    colons = 0;
+                }
+            }
+            long validLength = start + lineStart;
+            if (keepTail && lineStart < limit) {
+                if (addRecord(buffer, lineStart, colon, colons, limit, users)) records++;
+                validLength = end;
+            }
+            return new Result(records, validLength);
+        }
+
+        // A record is exactly one ':' after a non-empty username; an empty password marks the
+        // account as deleted (only the journal writes those)
+        private static boolean addRecord(ByteBuffer buffer, int lineStart, int colon, int colons, int lineEnd,
+                                         Map<String, User> users) {
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') lineEnd--;
+            if (colons != 1 || colon == lineStart) return false;
+            String username = decode(buffer, lineStart, colon);
+            if (colon == lineEnd - 1) {
+                users.remove(username);
+            } else {
+                users.put(username, new User(username, decode(buffer, colon + 1, lineEnd)));
+            }
+            return true;
+        }
+
+        private static String decode(ByteBuffer buffer, int from, int to) {
+            byte[] bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Append-only journal of user records in front of the users.txt snapshot.
+    // Journal lines use the snapshot's "username:password" form and later lines win on replay;
+    // "username:" with no password deletes the account.
+    // Appends are group-committed: whichever writer holds the flush lock writes and fsyncs
+    // every record queued so far, so a burst of registrations shares one fsync.
+    // Once the journal grows past a fraction of the snapshot it is compacted into a fresh snapshot.
+    static class UserJournal implements Closeable {
+        // The journal may grow to half the snapshot's size, but at least this much, before compaction
+        private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+        private final Path snapshotFile;
+        private final Path logFile;
+        // Journal set aside by a compaction whose snapshot is not yet in place; replayed before logFile
+        private final Path rotatedFile;
+        private final Map<String, User> users;
+        // Guarded by flushLock; replaced when the journal is rotated
+        private FileChannel log;
+        private final StringBuilder pending = new StringBuilder();
+        private final Object flushLock = new Object();
+        private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "user-journal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        private long appended;
+        private volatile long durable;
+        private volatile long journalBytes;
+        private volatile long snapshotBytes;
+        private final AtomicBoolean compactionQueued = new AtomicBoolean();
+
+        private final long recoveredRecords;
+
+        // Recovers the users map from snapshot plus journal, then opens the journal for appends
+        public UserJournal(Path snapshotFile, Path logFile, Map<String, User> users) throws IOException {
+            this.snapshotFile = snapshotFile;
+            this.logFile = logFile;
+            this.rotatedFile = logFile.resolveSibling(logFile.getFileName() + ".old");
+            this.users = users;
+            long records = 0;
+            if (Files.exists(snapshotFile)) {
+                // Snapshot lines are unique per user, so chunks can be loaded in any order
+                records += UserFileLoader.load(snapshotFile, users, true, true).records;
+                snapshotBytes = Files.size(snapshotFile);
+            }
+            boolean rotated = Files.exists(rotatedFile);
+            if (rotated) {
+                records += UserFileLoader.load(rotatedFile, users, false, false).records;
+            }
+            long validLength = 0;
+            if (Files.exists(logFile)) {
+                UserFileLoader.Result replayed = UserFileLoader.load(logFile, users, false, false);
+                records += replayed.records;
+                validLength = replayed.validLength;
+            }
+            recoveredRecords = records;
+            log = openLog();
+            // Drop a torn trailing record left by a crash so the next append starts on a fresh line
+            log.truncate(validLength);
+            log.position(validLength);
+            journalBytes = validLength;
+            if (validLength > 0 || rotated) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // Left for the next append to retry, e.g. while the mapped snapshot is still locked
+                    System.out.println("Warning: Could not compact user journal.");
+                }
+            }
+        }
+
+        public long getRecoveredRecords() { return recoveredRecords; }
+
+        // Durably appends a record; returns once it and everything queued before it are fsynced
+        public void append(User user) throws IOException {
+            append(user.toRecord());
+        }
+
+        // Durably records that the account was deleted
+        public void appendRemoval(String username) throws IOException {
+            append(username + ":");
+        }
+
+        private void append(String record) throws IOException {
+            long ticket;
+            synchronized (pending) {
+                pending.append(record).append('\n');
+                ticket = ++appended;
+            }
+            synchronized (flushLock) {
+                if (durable < ticket) {
+                    flushPending();
+                }
+            }
+            if (journalBytes > Math.max(MIN_COMPACT_BYTES, snapshotBytes / 2) && compactionQueued.compareAndSet(false, true)) {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        System.out.println("Warning: Could not compact user journal.");
+                    } finally {
+                        compactionQueued.set(false);
+                    }
+                });
+            }
+        }
+
+        // Caller must hold flushLock
+        private void flushPending() throws IOException {
+            byte[] batch;
+            long upTo;
+            synchronized (pending) {
+                batch = pending.toString().getBytes(StandardCharsets.UTF_8);
+                pending.setLength(0);
+                upTo = appended;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+            journalBytes += batch.length;
+            durable = upTo;
+        }
+
+        // Sets the journal aside and starts a fresh one, then writes every user to a new snapshot
+        // and swaps it in atomically. Only the rotation holds the flush lock; appends made while
+        // the snapshot is written go to the new journal. Every record in the rotated journal is
+        // already in the users map the snapshot is taken from, so the rotated file can then go.
+        // Should the snapshot fail, the rotated journal stays and is replayed before the new one.
+        public synchronized void compact() throws IOException {
+            synchronized (flushLock) {
+                flushPending();
+                if (Files.exists(rotatedFile)) {
+                    // A previous compaction failed: keep one rotated file by appending this journal to it
+                    try (FileChannel rotated = FileChannel.open(rotatedFile, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)) {
+                        long copied = 0;
+                        while (copied < journalBytes) {
+                            copied += log.transferTo(copied, journalBytes - copied, rotated);
+                        }
+                        rotated.force(true);
+                    }
+                    log.truncate(0);
+                    log.position(0);
+                    log.force(true);
+                } else {
+                    log.close();
+                    try {
+                        Files.move(logFile, rotatedFile, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        // Reopened either way, so a failed rotation leaves appends working
+                        log = openLog();
+                        log.position(log.size());
+                    }
+                }
+                journalBytes = 0;
+            }
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 BufferedWriter writer = new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8))) {
+                for (User user : users.values()) {
+                    writer.write(user.toRecord());
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.force(true);
+                snapshotBytes = out.size();
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(rotatedFile);
+        }
+
+        private FileChannel openLog() throws IOException {
+            return FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            compactor.shutdown();
+            synchronized (flushLock) {
+                flushPending();
+                log.close();
+            }
+        }
+    }
+
+    // Durable fleet file with one fixed-width record per vehicle, holding the vehicle and its open
+    // rental. Records are rewritten in place on every change and freed slots are reused, so the
+    // file stays proportional to the live fleet and a restart reads only that many records.
+    // Writes go straight to the OS without an fsync per change; close() forces them to disk.
+    static class FleetStore implements Closeable {
+        private static final int MAGIC = 0x464C5431; // "FLT1"
+        private static final int HEADER_SIZE = 16;
+        private static final int RECORD_SIZE = 256;
+        static final int MAX_TEXT_BYTES = 64;
+
+        private static final byte FREE = 0;
+        private static final byte LIVE = 1;
+        private static final byte CAR = 1;
+        private static final byte MOTORCYCLE = 2;
+
+        // Record layout: status, type, feature flag, rented flag, id, rate, days, rental start,
+        // then brand, model and renter as length-prefixed UTF-8 in fixed 64-byte fields
+        private static final int TEXT_OFFSET = 28;
+        private static final int TEXT_FIELD_SIZE = 2 + MAX_TEXT_BYTES;
+
+        // Called for each live record on load; renter is null when the vehicle is not rented
+        interface Visitor {
+            void vehicle(Vehicle vehicle, String renter, int days, long rentedAt);
+        }
+
+        private final FileChannel channel;
+        private final Deque<Integer> freeSlots = new ArrayDeque<>();
+        private int slotCount;
+
+        public FleetStore(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(RECORD_SIZE).flip();
+                channel.write(header, 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != RECORD_SIZE) {
+                    channel.close();
+                    throw new IOException("Unrecognized fleet file: " + file);
+                }
+            }
+            slotCount = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        }
+
+        // True only for a file holding nothing but its header, i.e. one no vehicle was ever written
+        // to; a fleet whose vehicles were all removed still has its freed slots
+        public synchronized boolean isNew() {
+            return slotCount == 0;
+        }
+
+        public static boolean fits(String text) {
+            return text.getBytes(StandardCharsets.UTF_8).length <= MAX_TEXT_BYTES;
+        }
+
+        // Reads every slot in large sequential blocks, rebuilding the free list as it goes
+        public synchronized void load(Visitor visitor) throws IOException {
+            freeSlots.clear();
+            ByteBuffer block = ByteBuffer.allocateDirect(RECORD_SIZE * 1024);
+            int slot = 0;
+            while (slot < slotCount) {
+                block.clear();
+                int toRead = Math.min(slotCount - slot, 1024) * RECORD_SIZE;
+                block.limit(toRead);
+                long position = HEADER_SIZE + (long) slot * RECORD_SIZE;
+                while (block.hasRemaining()) {
+                    if (channel.read(block, position + block.position()) < 0) break;
+                }
+                for (int offset = 0; offset < toRead; offset += RECORD_SIZE, slot++) {
+                    if (block.get(offset) != LIVE) {
+                        freeSlots.add(slot);
+                        continue;
+                    }
+                    readRecord(block, offset, slot, visitor);
+                }
+            }
+        }
+
+        private void readRecord(ByteBuffer block, int offset, int slot, Visitor visitor) {
+            byte type = block.get(offset + 1);
+            boolean feature = block.get(offset + 2) != 0;
+            boolean rented = block.get(offset + 3) != 0;
+            int id = block.getInt(offset + 4);
+            double rate = block.getDouble(offset + 8);
+            int days = block.getInt(offset + 16);
+            long rentedAt = block.getLong(offset + 20);
+            String brand = readText(block, offset + TEXT_OFFSET);
+            String model = readText(block, offset + TEXT_OFFSET + TEXT_FIELD_SIZE);
+            String renter = rented ? readText(block, offset + TEXT_OFFSET + 2 * TEXT_FIELD_SIZE) : null;
+
+            Vehicle vehicle = type == CAR
+                    ? new Car(model, brand, rate, feature)
+                    : new Motorcycle(model, brand, rate, feature);
+            vehicle.setId(id);
+            vehicle.setSlot(slot);
+            visitor.vehicle(vehicle, renter, days, rentedAt);
+        }
+
+        private static String readText(ByteBuffer block, int offset) {
+            int length = Math.min(block.getShort(offset), MAX_TEXT_BYTES);
+            byte[] bytes = new byte[length];
+            block.get(offset + 2, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Gives the vehicle a slot (reusing a freed one if possible) and writes its record
+        public void insert(Vehicle vehicle) throws IOException {
+            synchronized (this) {
+                Integer free = freeSlots.poll();
+                vehicle.setSlot(free != null ? free : slotCount++);
+            }
+            write(vehicle, null);
+        }
+
+        // Gives each new vehicle a slot and writes the records, one write per run of adjacent
+        // slots, so appending a large batch costs a handful of writes rather than one per vehicle
+        public void insertAll(List<Vehicle> batch) throws IOException {
+            synchronized (this) {
+                for (Vehicle vehicle : batch) {
+                    Integer free = freeSlots.poll();
+                    vehicle.setSlot(free != null ? free : slotCount++);
+                }
+            }
+            List<Vehicle> bySlot = new ArrayList<>(batch);
+            bySlot.sort(Comparator.comparingInt(Vehicle::getSlot));
+            int runStart = 0;
+            for (int i = 1; i <= bySlot.size(); i++) {
+                if (i < bySlot.size() && bySlot.get(i).getSlot() == bySlot.get(i - 1).getSlot() + 1) continue;
+                ByteBuffer run = ByteBuffer.allocate((i - runStart) * RECORD_SIZE);
+                for (int j = runStart; j < i; j++) {
+                    run.position((j - runStart) * RECORD_SIZE);
+                    encode(bySlot.get(j), null, run.slice().limit(RECORD_SIZE));
+                }
+                run.clear();
+                writeSlot(bySlot.get(runStart).getSlot(), run);
+                runStart = i;
+            }
+        }
+
+        // Rewrites the vehicle's record in place with its current rental, or none
+        public void write(Vehicle vehicle, Rental rental) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            encode(vehicle, rental, record);
+            record.clear();
+            writeSlot(vehicle.getSlot(), record);
+        }
+
+        private static void encode(Vehicle vehicle, Rental rental, ByteBuffer record) {
+            record.put(LIVE);
+            record.put(vehicle.isMotorcycle() ? MOTORCYCLE : CAR);
+            record.put((byte) (vehicle.hasAddOn() ? 1 : 0));
+            record.put((byte) (rental != null ? 1 : 0));
+            record.putInt(vehicle.getId());
+            record.putDouble(vehicle.getRentalRate());
+            record.putInt(rental != null ? rental.getDays() : 0);
+            record.putLong(rental != null ? rental.getStartedAt() : 0L);
+            putText(record, TEXT_OFFSET, vehicle.getBrand());
+            putText(record, TEXT_OFFSET + TEXT_FIELD_SIZE, vehicle.getModel());
+            if (rental != null) {
+                putText(record, TEXT_OFFSET + 2 * TEXT_FIELD_SIZE, rental.getRenter().getUsername());
+            }
+        }
+
+        private static void putText(ByteBuffer record, int offset, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_TEXT_BYTES) {
+                throw new IllegalArgumentException("Text longer than " + MAX_TEXT_BYTES + " bytes: " + text);
+            }
+            record.putShort(offset, (short) bytes.length);
+            record.put(offset + 2, bytes);
+        }
+
+        public void delete(Vehicle vehicle) throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(1);
+            record.put(0, FREE);
+            writeSlot(vehicle.getSlot(), record);
+            synchronized (this) {
+                freeSlots.add(vehicle.getSlot());
+            }
+        }
+
+        private void writeSlot(int slot, ByteBuffer buffer) throws IOException {
+            long position = HEADER_SIZE + (long) slot * RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.force(true);
+            channel.close();
+        }
+    }
+
+    // Journal of future reservations, one line per change: "+ id vehicleId start end username"
+    // when a reservation is made and "- id" when it is cancelled, picked up or expires. Opening
+    // replays the journal and rewrites it with just the live reservations behind a "= maxId" line,
+    // so the file stays proportional to the open bookings and IDs are never handed out twice.
+    // Like the fleet file, appends go straight to the OS and close() forces them to disk.
+    static class ReservationJournal implements Closeable {
+        // Called for each live reservation on load
+        interface Visitor {
+            void reservation(long id, int vehicleId, LocalDate start, LocalDate end, String username);
+        }
+
+        private final FileChannel log;
+        private final Map<Long, String[]> live = new LinkedHashMap<>();
+        private long maxId;
+
+        public ReservationJournal(Path file) throws IOException {
+            if (Files.exists(file)) {
+                // Decoded leniently: a line torn by a crash is simply skipped
+                String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                for (String line : text.split("\n")) replay(line);
+            }
+            StringBuilder compacted = new StringBuilder("= ").append(maxId).append('\n');
+            for (String[] fields : live.values()) compacted.append(String.join(" ", fields)).append('\n');
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, compacted.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        private void replay(String line) {
+            String[] fields = line.split(" ", 6);
+            try {
+                switch (fields[0]) {
+                    case "+":
+                        if (fields.length < 6) return;
+                        Integer.parseInt(fields[2]);
+                        LocalDate.parse(fields[3]);
+                        LocalDate.parse(fields[4]);
+                        long id = Long.parseLong(fields[1]);
+                        live.put(id, fields);
+                        maxId = Math.max(maxId, id);
+                        break;
+                    case "-":
+                        if (fields.length > 1) live.remove(Long.parseLong(fields[1]));
+                        break;
+                    case "=":
+                        if (fields.length > 1) maxId = Math.max(maxId, Long.parseLong(fields[1]));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                // an unreadable line, e.g. torn by a crash mid-append
+            }
+        }
+
+        // The highest reservation ID ever journaled, live or not
+        public long getMaxId() { return maxId; }
+
+        public void load(Visitor visitor) {
+            for (String[] fields : live.values()) {
+                visitor.reservation(Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                        LocalDate.parse(fields[3]), LocalDate.parse(fields[4]), fields[5]);
+            }
+            live.clear();
+        }
+
+        public void append(Reservation reservation) throws IOException {
+            append("+ " + reservation.getId() + " " + reservation.getVehicle().getId() + " " + reservation.getStart()
+                    + " " + reservation.getEnd() + " " + reservation.getUser().getUsername());
+        }
+
+        public void appendRemoval(long reservationId) throws IOException {
+            append("- " + reservationId);
+        }
+
+        private synchronized void append(String record) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            log.force(true);
+            log.close();
+        }
+    }
+
+    // Append-only history of closed rentals, kept as a directory of segments. Rows go to an
+    // in-memory active segment backed by a text log (active.log, one row per line); once it holds
+    // SEGMENT_ROWS rows the log is renamed to segment-NNNNNN.log and a fresh one started, and a
+    // background thread seals the rows into a memory-mapped columnar file (segment-NNNNNN.col)
+    // before deleting the renamed log. A row is therefore always in exactly one of active.log, a
+    // segment log or a columnar file, and a segment log whose columnar file exists is a leftover
+    // that recovery deletes rather than replays. Each segment knows the min/max of its start and end times, so range
+    // queries skip whole segments that cannot match and read only the columns they need.
+    // Like the fleet file, rows are not fsynced one by one; close() forces them to disk.
+    static class RentalLedger implements Closeable {
+        static final int SEGMENT_ROWS = 65_536;
+        private static final int MAGIC = 0x4C475331; // "LGS1"
+        private static final int HEADER_SIZE = 44;
+        private static final String ACTIVE_LOG = "active.log";
+
+        // Read access to the rows of one segment; times are epoch milliseconds, end exclusive
+        abstract static class Segment {
+            int rows;
+            long minStart = Long.MAX_VALUE, maxStart = Long.MIN_VALUE;
+            long minEnd = Long.MAX_VALUE, maxEnd = Long.MIN_VALUE;
+
+            abstract int vehicleId(int row);
+            abstract String user(int row);
+            abstract long start(int row);
+            abstract long end(int row);
+            abstract int days(int row);
+            abstract double baseCost(int row);
+            // Add-ons, discounts and surcharges on top of the base cost
+            abstract double extraCost(int row);
+
+            double totalCost(int row) { return baseCost(row) + extraCost(row); }
+
+            // Whether any row's rental period overlaps [from, to)
+            boolean overlaps(long from, long to) { return rows > 0 && minStart < to && maxEnd > from; }
+
+            // Whether any row ended in [from, to)
+            boolean endsWithin(long from, long to) { return rows > 0 && maxEnd >= from && minEnd < to; }
+
+            void widen(long start, long end) {
+                minStart = Math.min(minStart, start);
+                maxStart = Math.max(maxStart, start);
+                minEnd = Math.min(minEnd, end);
+                maxEnd = Math.max(maxEnd, end);
+            }
+        }
+
+        // The segment still being filled, as growable column arrays
+        static class ActiveSegment extends Segment {
+            private int[] vehicleIds = new int[1024];
+            private String[] users = new String[1024];
+            private long[] starts = new long[1024];
+            private long[] ends = new long[1024];
+            private int[] days = new int[1024];
+            private double[] baseCosts = new double[1024];
+            private double[] extraCosts = new double[1024];
+
+            void append(int vehicleId, String user, long start, long end, int rentalDays, double base, double extra) {
+                if (rows == vehicleIds.length) {
+                    int capacity = rows * 2;
+                    vehicleIds = Arrays.copyOf(vehicleIds, capacity);
+                    users = Arrays.copyOf(users, capacity);
+                    starts = Arrays.copyOf(starts, capacity);
+                    ends = Arrays.copyOf(ends, capacity);
+                    days = Arrays.copyOf(days, capacity);
+                    baseCosts = Arrays.copyOf(baseCosts, capacity);
+                    extraCosts = Arrays.copyOf(extraCosts, capacity);
+                }
+                vehicleIds[rows] = vehicleId;
+                users[rows] = user;
+                starts[rows] = start;
+                ends[rows] = end;
+                days[rows] = rentalDays;
+                baseCosts[rows] = base;
+                extraCosts[rows] = extra;
+                widen(start, end);
+                rows++;
+            }
+
+            // A frozen view of the rows so far. Rows are only ever appended and the arrays are
+            // replaced rather than resized, so the view stays valid while appends continue.
+            ActiveSegment view() {
+                ActiveSegment view = new ActiveSegment();
+                view.vehicleIds = vehicleIds;
+                view.users = users;
+                view.starts = starts;
+                view.ends = ends;
+                view.days = days;
+                view.baseCosts = baseCosts;
+                view.extraCosts = extraCosts;
+                view.rows = rows;
+                view.minStart = minStart;
+                view.maxStart = maxStart;
+                view.minEnd = minEnd;
+                view.maxEnd = maxEnd;
+                return view;
+            }
+
+            int vehicleId(int row) { return vehicleIds[row]; }
+            String user(int row) { return users[row]; }
+            long start(int row) { return starts[row]; }
+            long end(int row) { return ends[row]; }
+            int days(int row) { return days[row]; }
+            double baseCost(int row) { return baseCosts[row]; }
+            double extraCost(int row) { return extraCosts[row]; }
+        }
+
+        // A sealed segment file: header (magic, rows, start and end min/max, user count), the
+        // user dictionary as length-prefixed UTF-8, then one column after another
+        static class SealedSegment extends Segment {
+            private final ByteBuffer data;
+            private final String[] userNames;
+            private final int vehicleColumn, userColumn, startColumn, endColumn, daysColumn, baseColumn, extraColumn;
+
+            private SealedSegment(ByteBuffer data, Path file) throws IOException {
+                this.data = data;
+                if (data.getInt(0) != MAGIC) throw new IOException("Unrecognized ledger segment: " + file);
+                rows = data.getInt(4);
+                minStart = data.getLong(8);
+                maxStart = data.getLong(16);
+                minEnd = data.getLong(24);
+                maxEnd = data.getLong(32);
+                userNames = new String[data.getInt(40)];
+                int offset = HEADER_SIZE;
+                for (int i = 0; i < userNames.length; i++) {
+                    byte[] bytes = new byte[data.getShort(offset)];
+                    data.get(offset + 2, bytes);
+                    userNames[i] = new String(bytes, StandardCharsets.UTF_8);
+                    offset += 2 + bytes.length;
+                }
+                vehicleColumn = offset;
+                userColumn = vehicleColumn + 4 * rows;
+                startColumn = userColumn + 4 * rows;
+                endColumn = startColumn + 8 * rows;
+                daysColumn = endColumn + 8 * rows;
+                baseColumn = daysColumn + 4 * rows;
+                extraColumn = baseColumn + 8 * rows;
+            }
+
+            static SealedSegment open(Path file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    return new SealedSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file);
+                }
+            }
+
+            // Writes the segment's rows column by column to a new file and fsyncs it
+            static void write(Segment segment, Path file) throws IOException {
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                int dictionaryBytes = 0;
+                for (int row = 0; row < segment.rows; row++) {
+                    String user = segment.user(row);
+                    if (!dictionary.containsKey(user)) {
+                        dictionary.put(user, dictionary.size());
+                        dictionaryBytes += 2 + user.getBytes(StandardCharsets.UTF_8).length;
+                    }
+                }
+                int rows = segment.rows;
+                ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + dictionaryBytes + rows * (4 + 4 + 8 + 8 + 4 + 8 + 8));
+                out.putInt(MAGIC).putInt(rows)
+                        .putLong(segment.minStart).putLong(segment.maxStart)
+                        .putLong(segment.minEnd).putLong(segment.maxEnd)
+                        .putInt(dictionary.size());
+                for (String user : dictionary.keySet()) {
+                    byte[] bytes = user.getBytes(StandardCharsets.UTF_8);
+                    out.putShort((short) bytes.length).put(bytes);
+                }
+                for (int row = 0; row < rows; row++) out.putInt(segment.vehicleId(row));
+                for (int row = 0; row < rows; row++) out.putInt(dictionary.get(segment.user(row)));
+                for (int row = 0; row < rows; row++) out.putLong(segment.start(row));
+                for (int row = 0; row < rows; row++) out.putLong(segment.end(row));
+                for (int row = 0; row < rows; row++) out.putInt(segment.days(row));
+                for (int row = 0; row < rows; row++) out.putDouble(segment.baseCost(row));
+                for (int row = 0; row < rows; row++) out.putDouble(segment.extraCost(row));
+                out.flip();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (out.hasRemaining()) channel.write(out);
+                    channel.force(true);
+                }
+            }
+
+            int vehicleId(int row) { return data.getInt(vehicleColumn + 4 * row); }
+            String user(int row) { return userNames[data.getInt(userColumn + 4 * row)]; }
+            long start(int row) { return data.getLong(startColumn + 8 * row); }
+            long end(int row) { return data.getLong(endColumn + 8 * row); }
+            int days(int row) { return data.getInt(daysColumn + 4 * row); }
+            double baseCost(int row) { return data.getDouble(baseColumn + 8 * row); }
+            double extraCost(int row) { return data.getDouble(extraColumn + 8 * row); }
+        }
+
+        // One user's totals over a query range
+        static class RenterTotal {
+            private final String username;
+            private int rentals;
+            private double revenue;
+
+            RenterTotal(String username) {
+                this.username = username;
+            }
+
+            public String getUsername() { return username; }
+            public int getRentals() { return rentals; }
+            public double getRevenue() { return revenue; }
+        }
+
+        private final Path directory;
+        private final Path logFile;
+        private final List<SealedSegment> sealed = new ArrayList<>();
+        // Full segments whose columnar file is still being written; queried from memory meanwhile
+        private final List<ActiveSegment> sealing = new ArrayList<>();
+        private ActiveSegment active = new ActiveSegment();
+        private FileChannel log;
+        private int nextSegment = 1;
+        private final ZoneId zone = ZoneId.systemDefault();
+        private final ExecutorService sealer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "rental-ledger-sealer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Maps the sealed segments, queues any segment log without a columnar file for sealing
+        // and replays the active log, dropping a torn last line
+        public RentalLedger(Path directory) throws IOException {
+            this.directory = directory;
+            this.logFile = directory.resolve(ACTIVE_LOG);
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*")) {
+                for (Path file : stream) files.add(file);
+            }
+            Collections.sort(files);
+            Map<Integer, Path> segmentLogs = new TreeMap<>();
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.delete(file);
+                    continue;
+                }
+                int number = Integer.parseInt(name.substring("segment-".length(), name.indexOf('.')));
+                nextSegment = Math.max(nextSegment, number + 1);
+                if (name.endsWith(".col")) sealed.add(SealedSegment.open(file));
+                else if (name.endsWith(".log")) segmentLogs.put(number, file);
+            }
+            for (Map.Entry<Integer, Path> entry : segmentLogs.entrySet()) {
+                int number = entry.getKey();
+                if (Files.exists(segmentFile(number, ".col"))) {
+                    // Sealed before a crash cut the cleanup short
+                    Files.delete(entry.getValue());
+                } else {
+                    ActiveSegment segment = new ActiveSegment();
+                    replay(entry.getValue(), segment);
+                    sealing.add(segment);
+                    sealer.execute(() -> seal(number, segment));
+                }
+            }
+
+            int validLength = Files.exists(logFile) ? replay(logFile, active) : 0;
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            log.truncate(validLength);
+            log.position(validLength);
+        }
+
+        private Path segmentFile(int number, String suffix) {
+            return directory.resolve(String.format("segment-%06d%s", number, suffix));
+        }
+
+        // Reads a log's rows into the segment and returns the length of its newline-terminated
+        // part. A log holds at most one segment's worth of rows, so it is read in one go; anything
+        // after the last newline is a torn write.
+        private static int replay(Path file, ActiveSegment segment) throws IOException {
+            byte[] bytes = Files.readAllBytes(file);
+            int validLength = 0;
+            for (int newline; (newline = indexOf(bytes, (byte) '\n', validLength)) >= 0; validLength = newline + 1) {
+                String[] fields = new String(bytes, validLength, newline - validLength, StandardCharsets.UTF_8).split(",", 7);
+                if (fields.length < 7) break;
+                try {
+                    segment.append(Integer.parseInt(fields[0]), fields[6], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Integer.parseInt(fields[3]),
+                            Double.parseDouble(fields[4]), Double.parseDouble(fields[5]));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+            return validLength;
+        }
+
+        private static int indexOf(byte[] bytes, byte value, int from) {
+            for (int i = from; i < bytes.length; i++) {
+                if (bytes[i] == value) return i;
+            }
+            return -1;
+        }
+
+        // Records a closed rental; start and end are epoch milliseconds
+        public synchronized void append(int vehicleId, String user, long start, long end, int days,
+                                        double baseCost, double extraCost) throws IOException {
+            active.append(vehicleId, user, start, end, days, baseCost, extraCost);
+            String line = vehicleId + "," + start + "," + end + "," + days + ","
+                    + baseCost + "," + extraCost + "," + user + "\n";
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) log.write(buffer);
+            if (active.rows >= SEGMENT_ROWS) rotate();
+        }
+
+        // Renames the full log to the next segment's log, starts a fresh one and hands the full
+        // segment to the sealer, so appends only ever wait for a rename
+        private void rotate() throws IOException {
+            int number = nextSegment;
+            log.close();
+            try {
+                Files.move(logFile, segmentFile(number, ".log"), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // Reopened either way, so a failed rename leaves appends working and is retried
+                log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                log.position(log.size());
+            }
+            nextSegment++;
+            ActiveSegment full = active;
+            sealing.add(full);
+            active = new ActiveSegment();
+            sealer.execute(() -> seal(number, full));
+        }
+
+        // Writes a full segment as a columnar file, swaps it in and deletes its segment log.
+        // On failure the rows stay queryable from memory and the segment log seals them on restart.
+        private void seal(int number, ActiveSegment segment) {
+            Path file = segmentFile(number, ".col");
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                SealedSegment.write(segment, tmp);
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                SealedSegment sealedSegment = SealedSegment.open(file);
+                synchronized (this) {
+                    sealing.remove(segment);
+                    sealed.add(sealedSegment);
+                }
+                Files.delete(segmentFile(number, ".log"));
+            } catch (IOException e) {
+                System.out.println("Warning: Could not seal rental history segment.");
+            }
+        }
+
+        private synchronized List<Segment> segments() {
+            List<Segment> segments = new ArrayList<>(sealed);
+            segments.addAll(sealing);
+            segments.add(active.view());
+            return segments;
+        }
+
+        public synchronized long size() {
+            long rows = active.rows;
+            for (Segment segment : sealed) rows += segment.rows;
+            for (Segment segment : sealing) rows += segment.rows;
+            return rows;
+        }
+
+        private long startOf(LocalDate day) {
+            return day.atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+
+        // Revenue of rentals returned on each day in [from, to), by day
+        public SortedMap<LocalDate, Double> revenuePerDay(LocalDate from, LocalDate to) {
+            long fromMillis = startOf(from);
+            long toMillis = startOf(to);
+            SortedMap<LocalDate, Double> revenue = new TreeMap<>();
+            for (Segment segment : segments()) {
+                if (!segment.endsWithin(fromMillis, toMillis)) continue;
+                for (int row = 0; row < segment.rows; row++) {
+                    long end = segment.end(row);
+                    if (end < fromMillis || end >= toMillis) continue;
+                    LocalDate day = Instant.ofEpochMilli(end).atZone(zone).toLocalDate();
+                    revenue.merge(day, segment.totalCost(row), Double::sum);
+                }
+            }
+            return revenue;
+        }
+
+        // Fraction of [from, to) each vehicle spent rented, for vehicles rented at all in that time
+        public Map<Integer, Double> utilizationPerVehicle(LocalDate from, LocalDate to) {
+            long fromMillis = startOf(from);
+            long toMillis = startOf(to);
+            Map<Integer, Long> rentedMillis = new HashMap<>();
+            for (Segment segment : segments()) {
+                if (!segment.overlaps(fromMillis, toMillis)) continue;
+                for (int row = 0; row < segment.rows; row++) {
+                    long overlap = Math.min(segment.end(row), toMillis) - Math.max(segment.start(row), fromMillis);
+                    if (overlap > 0) rentedMillis.merge(segment.vehicleId(row), overlap, Long::sum);
+                }
+            }
+            Map<Integer, Double> utilization = new TreeMap<>();
+            double span = toMillis - fromMillis;
+            rentedMillis.forEach((id, millis) -> utilization.put(id, Math.min(1.0, millis / span)));
+            return utilization;
+        }
+
+        // The users with the most revenue from rentals returned in [from, to), highest first
+        public List<RenterTotal> topRenters(LocalDate from, LocalDate to, int limit) {
+            long fromMillis = startOf(from);
+            long toMillis = startOf(to);
+            Map<String, RenterTotal> totals = new HashMap<>();
+            for (Segment segment : segments()) {
+                if (!segment.endsWithin(fromMillis, toMillis)) continue;
+                for (int row = 0; row < segment.rows; row++) {
+                    long end = segment.end(row);
+                    if (end < fromMillis || end >= toMillis) continue;
+                    RenterTotal total = totals.computeIfAbsent(segment.user(row), RenterTotal::new);
+                    total.rentals++;
+                    total.revenue += segment.totalCost(row);
+                }
+            }
+            List<RenterTotal> ranked = new ArrayList<>(totals.values());
+            ranked.sort(Comparator.comparingDouble((RenterTotal t) -> t.revenue).reversed()
+                    .thenComparing(t -> t.username));
+            return ranked.size() > limit ? new ArrayList<>(ranked.subList(0, limit)) : ranked;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            sealer.shutdown();
+            log.force(true);
+            log.close();
+        }
+    }
+
+    // An open rental linking a renter to the vehicle they currently hold
+    static class Rental {
+        private final User renter;
+        private final Vehicle vehicle;
+        private final int days;
+        private final long startedAt;
+        // The days the rental holds in the vehicle's booking calendar
+        private final Reservation booking;
+
+        public Rental(User renter, Vehicle vehicle, int days, long startedAt) {
+            this.renter = renter;
+            this.vehicle = vehicle;
+            this.days = days;
+            this.startedAt = startedAt;
+            LocalDate start = Instant.ofEpochMilli(startedAt).atZone(ZoneId.systemDefault()).toLocalDate();
+            this.booking = new Reservation(0, renter, vehicle, start, start.plusDays(days));
+        }
+
+        public User getRenter() { return renter; }
+        public Vehicle getVehicle() { return vehicle; }
+        public int getDays() { return days; }
+        public long getStartedAt() { return startedAt; }
+        Reservation getBooking() { return booking; }
+    }
+
+    // A vehicle booked by a user from start (inclusive) to end (exclusive)
+    static class Reservation {
+        private final long id;
+        private final User user;
+        private final Vehicle vehicle;
+        private final LocalDate start;
+        private final LocalDate end;
+
+        public Reservation(long id, User user, Vehicle vehicle, LocalDate start, LocalDate end) {
+            this.id = id;
+            this.user = user;
+            this.vehicle = vehicle;
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getId() { return id; }
+        public User getUser() { return user; }
+        public Vehicle getVehicle() { return vehicle; }
+        public LocalDate getStart() { return start; }
+        public LocalDate getEnd() { return end; }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + vehicle + " from " + start + " to " + end;
+        }
+    }
+
+    // Non-overlapping bookings of one vehicle, keyed by start date, so conflict checks are two
+    // tree lookups. Not thread-safe on its own: callers synchronize on the calendar.
+    static class BookingCalendar {
+        private final TreeMap<LocalDate, Reservation> bookings = new TreeMap<>();
+
+        // The first booking overlapping [start, end) other than the ignored one, or null
+        Reservation conflict(LocalDate start, LocalDate end, Reservation ignored) {
+            if (!start.isBefore(end)) return null;
+            Map.Entry<LocalDate, Reservation> before = bookings.floorEntry(start);
+            if (before != null && before.getValue() != ignored && before.getValue().getEnd().isAfter(start)) {
+                return before.getValue();
+            }
+            for (Reservation later : bookings.subMap(start, false, end, false).values()) {
+                if (later != ignored) return later;
+            }
+            return null;
+        }
+
+        void add(Reservation booking) {
+            bookings.put(booking.getStart(), booking);
+        }
+
+        void remove(Reservation booking) {
+            bookings.remove(booking.getStart(), booking);
+        }
+
+        boolean isEmpty() {
+            return bookings.isEmpty();
+        }
+
+        // Bookings whose last day is before the given day. Bookings never overlap, so their end
+        // dates rise with their start dates and the scan stops at the first one still running.
+        List<Reservation> endedBy(LocalDate day) {
+            List<Reservation> ended = new ArrayList<>();
+            for (Reservation booking : bookings.headMap(day, false).values()) {
+                if (booking.getEnd().isAfter(day)) break;
+                ended.add(booking);
+            }
+            return ended;
+        }
+    }
+
+    // Limits on what a single user may hold at once
+    interface RentalPolicy {
+        int maxActiveRentals(User user);
+
+        default int maxReservations(User user) {
+            return 10;
+        }
+
+        // The same rental limit for everyone; 1 is the classic one-rental-per-user rule
+        static RentalPolicy maxActiveRentals(int max) {
+            return user -> max;
+        }
+    }
+
+    // Search criteria for the vehicle catalog; unset fields match everything
+    static class VehicleQuery {
+        private String brand;
+        private String model;
+        private Boolean motorcycle;
+        private Boolean hasAC;
+        private Boolean hasHelmet;
+        private double minRate = 0;
+        private double maxRate = Double.MAX_VALUE;
+        private int limit = Integer.MAX_VALUE;
+
+        public VehicleQuery brand(String brand) { this.brand = brand; return this; }
+        public VehicleQuery model(String model) { this.model = model; return this; }
+        public VehicleQuery motorcycle(boolean motorcycle) { this.motorcycle = motorcycle; return this; }
+        public VehicleQuery hasAC(boolean hasAC) { this.hasAC = hasAC; return this; }
+        public VehicleQuery hasHelmet(boolean hasHelmet) { this.hasHelmet = hasHelmet; return this; }
+        public VehicleQuery minRate(double minRate) { this.minRate = minRate; return this; }
+        public VehicleQuery maxRate(double maxRate) { this.maxRate = maxRate; return this; }
+        public VehicleQuery limit(int limit) { this.limit = limit; return this; }
+
+        public VehicleQuery copy() {
+            VehicleQuery copy = new VehicleQuery();
+            copy.brand = brand;
+            copy.model = model;
+            copy.motorcycle = motorcycle;
+            copy.hasAC = hasAC;
+            copy.hasHelmet = hasHelmet;
+            copy.minRate = minRate;
+            copy.maxRate = maxRate;
+            copy.limit = limit;
+            return copy;
+        }
+
+        boolean matches(Vehicle v) {
+            if (brand != null && !v.getBrand().equalsIgnoreCase(brand)) return false;
+            if (model != null && !v.getModel().equalsIgnoreCase(model)) return false;
+            if (motorcycle != null && v.isMotorcycle() != motorcycle) return false;
+            if (hasAC != null && (v.isMotorcycle() || v.hasAddOn() != hasAC)) return false;
+            if (hasHelmet != null && (!v.isMotorcycle() || v.hasAddOn() != hasHelmet)) return false;
+            return v.getRentalRate() >= minRate && v.getRentalRate() <= maxRate && v.isAvailable();
+        }
+    }
+
+    // Where RentalSystem keeps its vehicles: the vehicles by ID, which of them are available and
+    // the search indexes over those. add() hands back the Vehicle to use from then on, which is
+    // the given object itself or a view of the store's copy.
+    interface VehicleStore {
+        // Stores a new, available vehicle whose ID and fleet-file slot are already set
+        Vehicle add(Vehicle vehicle);
+
+        void addAll(List<Vehicle> batch);
+
+        void remove(Vehicle vehicle);
+
+        Vehicle get(int id);
+
+        // Vehicles with an ID greater than afterId, in ID order; read-only
+        Collection<Vehicle> all(int afterId);
+
+        Collection<Vehicle> available(int afterId);
+
+        int size();
+
+        int availableCount();
+
+        // Called after a vehicle is released or claimed, so the indexes follow its state
+        void indexAvailable(Vehicle vehicle);
+
+        void unindexAvailable(Vehicle vehicle);
+
+        // Matching available vehicles, cheapest first, at most the query's limit
+        List<Vehicle> search(VehicleQuery query);
+    }
+
+    // Secondary indexes over the available vehicles: hash indexes on brand and model
+    // (case-insensitive) and a rate-ordered index. IndexedFleet adds and removes vehicles as
+    // they are added, removed, rented and returned, so searches never scan the whole fleet.
+    static class VehicleCatalog {
+        static final Comparator<Vehicle> BY_RATE =
+                Comparator.comparingDouble(Vehicle::getRentalRate).thenComparingInt(Vehicle::getId);
+
+        // Each bucket is itself in rate order, so a narrowed search can stop early like the rate index
+        private final Map<String, NavigableSet<Vehicle>> byBrand = new ConcurrentHashMap<>();
+        private final Map<String, NavigableSet<Vehicle>> byModel = new ConcurrentHashMap<>();
+        private final NavigableSet<Vehicle> byRate = new ConcurrentSkipListSet<>(BY_RATE);
+
+        public void add(Vehicle vehicle) {
+            byBrand.computeIfAbsent(key(vehicle.getBrand()), k -> newBucket()).add(vehicle);
+            byModel.computeIfAbsent(key(vehicle.getModel()), k -> newBucket()).add(vehicle);
+            byRate.add(vehicle);
+        }
+
+        // Bulk form of add: one bucket lookup per distinct brand and model in the batch
+        public void addAll(Collection<Vehicle> batch) {
+            Map<String, List<Vehicle>> brands = new HashMap<>();
+            Map<String, List<Vehicle>> models = new HashMap<>();
+            for (Vehicle vehicle : batch) {
+                brands.computeIfAbsent(key(vehicle.getBrand()), k -> new ArrayList<>()).add(vehicle);
+                models.computeIfAbsent(key(vehicle.getModel()), k -> new ArrayList<>()).add(vehicle);
+            }
+            brands.forEach((k, vs) -> byBrand.computeIfAbsent(k, x -> newBucket()).addAll(vs));
+            models.forEach((k, vs) -> byModel.computeIfAbsent(k, x -> newBucket()).addAll(vs));
+            byRate.addAll(batch);
+        }
+
+        // Empty buckets are left in place; there is one per distinct brand or model at most
+        public void remove(Vehicle vehicle) {
+            Set<Vehicle> brand = byBrand.get(key(vehicle.getBrand()));
+            if (brand != null) brand.remove(vehicle);
+            Set<Vehicle> model = byModel.get(key(vehicle.getModel()));
+            if (model != null) model.remove(vehicle);
+            byRate.remove(vehicle);
+        }
+
+        // Matching available vehicles, cheapest first. The model bucket, else the brand bucket,
+        // else the whole rate index is walked from minRate and the walk stops at maxRate or after
+        // limit matches. A model usually belongs to one brand, so its bucket is the smaller one.
+        public List<Vehicle> search(VehicleQuery query) {
+            NavigableSet<Vehicle> candidates = byRate;
+            if (query.model != null) {
+                candidates = byModel.get(key(query.model));
+            } else if (query.brand != null) {
+                candidates = byBrand.get(key(query.brand));
+            }
+
+            List<Vehicle> results = new ArrayList<>();
+            if (candidates == null) return results;
+            for (Vehicle v : candidates.tailSet(lowestAtRate(query.minRate), true)) {
+                if (v.getRentalRate() > query.maxRate || results.size() >= query.limit) break;
+                if (query.matches(v)) results.add(v);
+            }
+            return results;
+        }
+
+        private static NavigableSet<Vehicle> newBucket() {
+            return new ConcurrentSkipListSet<>(BY_RATE);
+        }
+
+        private static String key(String text) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        // Sorts before every real vehicle with the given rate, for range lookups in byRate
+        private static Vehicle lowestAtRate(double rate) {
+            Vehicle probe = new Car("", "", rate, false);
+            probe.setId(Integer.MIN_VALUE);
+            return probe;
+        }
+    }
+
+    // The default store: one object per vehicle, kept by ID alongside an index of the available
+    // ones. Both maps are in ID order so listings are stable and can be paged by ID, and the
+    // catalog answers searches.
+    static class IndexedFleet implements VehicleStore {
+        private final NavigableMap<Integer, Vehicle> vehicles = new ConcurrentSkipListMap<>();
+        private final NavigableMap<Integer, Vehicle> availableVehicles = new ConcurrentSkipListMap<>();
+        // Skip-list size() walks every entry, so both counts are kept alongside the maps
+        private final AtomicInteger vehicleCount = new AtomicInteger();
+        private final AtomicInteger availableCount = new AtomicInteger();
+        private final VehicleCatalog catalog = new VehicleCatalog();
+
+        @Override
+        public Vehicle add(Vehicle vehicle) {
+            if (vehicles.put(vehicle.getId(), vehicle) == null) vehicleCount.incrementAndGet();
+            indexAvailable(vehicle);
+            return vehicle;
+        }
+
+        // One catalog update per brand and model; the IDs are new, so none is already in either map
+        @Override
+        public void addAll(List<Vehicle> batch) {
+            Map<Integer, Vehicle> added = new TreeMap<>();
+            for (Vehicle vehicle : batch) added.put(vehicle.getId(), vehicle);
+            vehicles.putAll(added);
+            vehicleCount.addAndGet(added.size());
+            availableVehicles.putAll(added);
+            availableCount.addAndGet(added.size());
+            catalog.addAll(batch);
+        }
+
+        @Override
+        public void remove(Vehicle vehicle) {
+            unindexAvailable(vehicle);
+            if (vehicles.remove(vehicle.getId()) != null) vehicleCount.decrementAndGet();
+        }
+
+        @Override
+        public Vehicle get(int id) { return vehicles.get(id); }
+
+        @Override
+        public Collection<Vehicle> all(int afterId) {
+            return Collections.unmodifiableCollection(vehicles.tailMap(afterId, false).values());
+        }
+
+        @Override
+        public Collection<Vehicle> available(int afterId) {
+            return Collections.unmodifiableCollection(availableVehicles.tailMap(afterId, false).values());
+        }
+
+        @Override
+        public int size() { return vehicleCount.get(); }
+
+        @Override
+        public int availableCount() { return availableCount.get(); }
+
+        // The availability index and the catalog always change together
+        @Override
+        public void indexAvailable(Vehicle vehicle) {
+            if (availableVehicles.put(vehicle.getId(), vehicle) == null) availableCount.incrementAndGet();
+            catalog.add(vehicle);
+        }
+
+        @Override
+        public void unindexAvailable(Vehicle vehicle) {
+            if (availableVehicles.remove(vehicle.getId()) != null) availableCount.decrementAndGet();
+            catalog.remove(vehicle);
+        }
+
+        @Override
+        public List<Vehicle> search(VehicleQuery query) { return catalog.search(query); }
+    }
+
+    // Struct-of-arrays store for very large fleets, chosen with -Drental.fleet.compactCapacity=N:
+    // one slot per vehicle ID across parallel primitive arrays instead of one object graph per
+    // vehicle. Brands and models are interned into a shared dictionary and stored as int IDs,
+    // availability is one bit per vehicle and renters are int IDs into a user table, so a vehicle
+    // costs about 25 bytes of heap; only vehicles that were ever booked also keep a calendar.
+    // Capacity is fixed up front, which keeps every array stable for lock-free reads; vehicles
+    // are claimed by clearing their availability bit with compare-and-set. The store hands out
+    // View flyweights, so the availability bits are the index and searches scan them.
+    static class CompactFleet implements VehicleStore {
+        // renterIds entries that are not an index into the user table
+        private static final int NO_RENTER = -1;
+        private static final int REMOVED = -2;
+        private static final byte MOTORCYCLE = 1;
+        private static final byte FEATURE = 2;
+
+        private final int[] brandIds;
+        private final int[] modelIds;
+        private final double[] rates;
+        private final byte[] flags;
+        private final int[] fileSlots;
+        private final AtomicIntegerArray renterIds;
+        private final AtomicLongArray available;
+        private final AtomicInteger vehicleCount = new AtomicInteger();
+        private final AtomicInteger availableCount = new AtomicInteger();
+        // One past the highest slot ever used; unused slots below it are marked REMOVED
+        private volatile int size;
+        private final Map<Integer, BookingCalendar> calendars = new ConcurrentHashMap<>();
+
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<User> renters = new ArrayList<>();
+        private final Map<User, Integer> renterIdsByUser = new HashMap<>();
+
+        public CompactFleet(int capacity) {
+            brandIds = new int[capacity];
+            modelIds = new int[capacity];
+            rates = new double[capacity];
+            flags = new byte[capacity];
+            fileSlots = new int[capacity];
+            renterIds = new AtomicIntegerArray(capacity);
+            available = new AtomicLongArray((capacity + 63) >>> 6);
+        }
+
+        // Copies the vehicle into slot ID - 1. The renter entry is written last, so a reader
+        // that sees the slot as live also sees its fields.
+        @Override
+        public synchronized Vehicle add(Vehicle vehicle) {
+            int slot = vehicle.getId() - 1;
+            if (slot < 0 || slot >= rates.length) {
+                throw new IllegalStateException("Compact fleet holds vehicle IDs 1 to " + rates.length + ", not " + vehicle.getId());
+            }
+            if (slot < size && renterIds.get(slot) != REMOVED) {
+                throw new IllegalStateException("Vehicle ID already in use: " + vehicle.getId());
+            }
+            for (int unused = size; unused < slot; unused++) renterIds.set(unused, REMOVED);
+            brandIds[slot] = intern(vehicle.getBrand());
+            modelIds[slot] = intern(vehicle.getModel());
+            rates[slot] = vehicle.getRentalRate();
+            flags[slot] = (byte) ((vehicle.isMotorcycle() ? MOTORCYCLE : 0) | (vehicle.hasAddOn() ? FEATURE : 0));
+            fileSlots[slot] = vehicle.getSlot();
+            renterIds.set(slot, NO_RENTER);
+            setAvailable(slot);
+            size = Math.max(size, slot + 1);
+            vehicleCount.incrementAndGet();
+            return new View(this, slot);
+        }
+
+        @Override
+        public void addAll(List<Vehicle> batch) {
+            for (Vehicle vehicle : batch) add(vehicle);
+        }
+
+        // RentalSystem retires a vehicle before removing it; its ID is never handed out again
+        @Override
+        public void remove(Vehicle vehicle) {
+            int slot = vehicle.getId() - 1;
+            tryClaim(slot);
+            renterIds.set(slot, REMOVED);
+            vehicleCount.decrementAndGet();
+            calendars.remove(slot);
+        }
+
+        @Override
+        public Vehicle get(int id) {
+            int slot = id - 1;
+            return slot >= 0 && slot < size && isLive(slot) ? new View(this, slot) : null;
+        }
+
+        @Override
+        public Collection<Vehicle> all(int afterId) {
+            return slots(Math.max(afterId, 0), false);
+        }
+
+        @Override
+        public Collection<Vehicle> available(int afterId) {
+            return slots(Math.max(afterId, 0), true);
+        }
+
+        // Lazy read-only collection of the live, or only the available, slots from the given one on
+        private Collection<Vehicle> slots(int from, boolean availableOnly) {
+            return new AbstractCollection<Vehicle>() {
+                @Override
+                public Iterator<Vehicle> iterator() {
+                    return new Iterator<Vehicle>() {
+                        private int next = advance(from);
+
+                        private int advance(int slot) {
+                            int end = size;
+                            while (slot < end && !(availableOnly ? isAvailable(slot) : isLive(slot))) slot++;
+                            return slot < end ? slot : -1;
+                        }
+
+                        @Override
+                        public boolean hasNext() { return next >= 0; }
+
+                        @Override
+                        public Vehicle next() {
+                            if (next < 0) throw new NoSuchElementException();
+                            Vehicle vehicle = new View(CompactFleet.this, next);
+                            next = advance(next + 1);
+                            return vehicle;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int count = 0;
+                    for (Iterator<Vehicle> it = iterator(); it.hasNext(); it.next()) count++;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public int size() { return vehicleCount.get(); }
+
+        @Override
+        public int availableCount() { return availableCount.get(); }
+
+        // The availability bits are the index, and they change with the vehicle itself
+        @Override
+        public void indexAvailable(Vehicle vehicle) {}
+
+        @Override
+        public void unindexAvailable(Vehicle vehicle) {}
+
+        private int intern(String text) {
+            Integer id = stringIds.get(text);
+            if (id == null) {
+                id = strings.size();
+                strings.add(text);
+                stringIds.put(text, id);
+            }
+            return id;
+        }
+
+        private synchronized String string(int id) { return strings.get(id); }
+
+        private boolean isLive(int slot) { return renterIds.get(slot) != REMOVED; }
+
+        private boolean isMotorcycle(int slot) { return (flags[slot] & MOTORCYCLE) != 0; }
+
+        private boolean hasFeature(int slot) { return (flags[slot] & FEATURE) != 0; }
+
+        private boolean isAvailable(int slot) {
+            return (available.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        private void setAvailable(int slot) {
+            long bit = 1L << slot;
+            if ((available.getAndAccumulate(slot >>> 6, bit, (word, b) -> word | b) & bit) == 0) {
+                availableCount.incrementAndGet();
+            }
+        }
+
+        // Atomically clears the slot's availability bit, if it is set
+        private boolean tryClaim(int slot) {
+            int word = slot >>> 6;
+            long bit = 1L << slot;
+            while (true) {
+                long current = available.get(word);
+                if ((current & bit) == 0) return false;
+                if (available.compareAndSet(word, current, current & ~bit)) break;
+            }
+            availableCount.decrementAndGet();
+            return true;
+        }
+
+        private boolean tryReserve(int slot, User renter) {
+            if (!tryClaim(slot)) return false;
+            renterIds.set(slot, renterId(renter));
+            return true;
+        }
+
+        private void release(int slot) {
+            renterIds.set(slot, NO_RENTER);
+            setAvailable(slot);
+        }
+
+        private boolean tryRetire(int slot) {
+            if (!tryClaim(slot)) return false;
+            renterIds.set(slot, REMOVED);
+            return true;
+        }
+
+        private User getRenter(int slot) {
+            int id = renterIds.get(slot);
+            return id < 0 ? null : renter(id);
+        }
+
+        private synchronized int renterId(User user) {
+            Integer id = renterIdsByUser.get(user);
+            if (id == null) {
+                id = renters.size();
+                renters.add(user);
+                renterIdsByUser.put(user, id);
+            }
+            return id;
+        }
+
+        private synchronized User renter(int id) { return renters.get(id); }
+
+        // Brand and model are resolved to dictionary IDs once, so the scan compares ints and walks
+        // only set bits; a heap keeps the cheapest limit matches seen so far
+        @Override
+        public List<Vehicle> search(VehicleQuery query) {
+            int brandId = query.brand == null ? -1 : lookup(query.brand);
+            int modelId = query.model == null ? -1 : lookup(query.model);
+            if (brandId == -2 || modelId == -2 || query.limit <= 0) return new ArrayList<>();
+            Comparator<Vehicle> byRate = VehicleCatalog.BY_RATE;
+            PriorityQueue<Vehicle> cheapest = new PriorityQueue<>(byRate.reversed());
+            for (int word = 0; word < available.length(); word++) {
+                long bits = available.get(word);
+                while (bits != 0) {
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    if (brandId >= 0 && brandIds[slot] != brandId) continue;
+                    if (modelId >= 0 && modelIds[slot] != modelId) continue;
+                    if (rates[slot] < query.minRate || rates[slot] > query.maxRate) continue;
+                    boolean motorcycle = isMotorcycle(slot);
+                    if (query.motorcycle != null && motorcycle != query.motorcycle) continue;
+                    if (query.hasAC != null && (motorcycle || hasFeature(slot) != query.hasAC)) continue;
+                    if (query.hasHelmet != null && (!motorcycle || hasFeature(slot) != query.hasHelmet)) continue;
+                    Vehicle vehicle = new View(this, slot);
+                    if (cheapest.size() < query.limit) {
+                        cheapest.add(vehicle);
+                    } else if (byRate.compare(vehicle, cheapest.peek()) < 0) {
+                        cheapest.poll();
+                        cheapest.add(vehicle);
+                    }
+                }
+            }
+            List<Vehicle> results = new ArrayList<>(cheapest);
+            results.sort(byRate);
+            return results;
+        }
+
+        // Dictionary ID of the text, matched case-insensitively like the catalog; -2 if absent
+        private synchronized int lookup(String text) {
+            Integer exact = stringIds.get(text);
+            if (exact != null) return exact;
+            for (int id = 0; id < strings.size(); id++) {
+                if (strings.get(id).equalsIgnoreCase(text)) return id;
+            }
+            return -2;
+        }
+
+        // A flyweight over one slot: reads and writes go to the arrays, nothing is copied. Views
+        // of the same slot are equal, so any of them can stand for the vehicle.
+        static class View extends Vehicle {
+            private final CompactFleet fleet;
+            private final int slot;
+
+            View(CompactFleet fleet, int slot) {
+                this.fleet = fleet;
+                this.slot = slot;
+            }
+
+            @Override public int getId() { return slot + 1; }
+            @Override int getSlot() { return fleet.fileSlots[slot]; }
+            @Override void setSlot(int fileSlot) { fleet.fileSlots[slot] = fileSlot; }
+            @Override public String getModel() { return fleet.string(fleet.modelIds[slot]); }
+            @Override public String getBrand() { return fleet.string(fleet.brandIds[slot]); }
+            @Override public double getRentalRate() { return fleet.rates[slot]; }
+            @Override public boolean isMotorcycle() { return fleet.isMotorcycle(slot); }
+            @Override public boolean hasAddOn() { return fleet.hasFeature(slot); }
+            @Override public boolean isAvailable() { return fleet.isAvailable(slot); }
+            @Override public User getRenter() { return fleet.getRenter(slot); }
+            @Override boolean tryReserve(User renter) { return fleet.tryReserve(slot, renter); }
+            @Override void release() { fleet.release(slot); }
+            @Override boolean tryRetire() { return fleet.tryRetire(slot); }
+            @Override boolean isRetired() { return !fleet.isLive(slot); }
+            @Override BookingCalendar getCalendar() { return fleet.calendars.computeIfAbsent(slot, s -> new BookingCalendar()); }
+            @Override boolean hasCalendar() { return fleet.calendars.containsKey(slot); }
+
+            // Same split as Car and Motorcycle: a motorcycle's helmet share is not part of its cost
+            @Override
+            public double calculateRentalCost(int days) {
+                Quote quote = PricingEngine.DEFAULT.quote(this, days);
+                return isMotorcycle() ? quote.getTotal() - quote.shareOf(PricingEngine.HELMET_CHARGE) : quote.getTotal();
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof View && ((View) o).fleet == fleet && ((View) o).slot == slot;
+            }
+
+            @Override
+            public int hashCode() { return slot; }
+        }
+    }
+
+    // Itemized price for renting a vehicle of one pricing class for a number of days
+    static class Quote {
+        // One receipt line, e.g. "Base cost" or "AC charge"; discounts are negative. Adjustments
+        // are percentages of the lines before them rather than charges in their own right.
+        static class Line {
+            private final String label;
+            private final double amount;
+            private final boolean adjustment;
+
+            Line(String label, double amount) {
+                this(label, amount, false);
+            }
+
+            Line(String label, double amount, boolean adjustment) {
+                this.label = label;
+                this.amount = amount;
+                this.adjustment = adjustment;
+            }
+
+            public String getLabel() { return label; }
+            public double getAmount() { return amount; }
+            public boolean isAdjustment() { return adjustment; }
+        }
+
+        private final int days;
+        private final List<Line> lines;
+        private final double total;
+
+        Quote(int days, List<Line> lines) {
+            this.days = days;
+            this.lines = Collections.unmodifiableList(lines);
+            double sum = 0;
+            for (Line line : lines) sum += line.amount;
+            this.total = sum;
+        }
+
+        public int getDays() { return days; }
+        public List<Line> getLines() { return lines; }
+        public double getTotal() { return total; }
+
+        // The part of the total owed for the charge with the given label, i.e. the charge with its
+        // proportional share of every discount and surcharge; 0 if there is no such charge
+        public double shareOf(String label) {
+            double charge = 0;
+            double charges = 0;
+            for (Line line : lines) {
+                if (line.adjustment) continue;
+                charges += line.amount;
+                if (line.label.equals(label)) charge += line.amount;
+            }
+            return charges == 0 ? 0 : total * charge / charges;
+        }
+    }
+
+    // One step of the pricing pipeline. Rules see the lines added so far, so discounts and
+    // surcharges can be taken off or added to the running subtotal. Quotes are cached per
+    // pricing class, so a rule may only look at the vehicle's type, rate and add-on flag.
+    interface PricingRule {
+        void apply(Vehicle vehicle, int days, List<Quote.Line> lines);
+
+        static double subtotal(List<Quote.Line> lines) {
+            double sum = 0;
+            for (Quote.Line line : lines) sum += line.getAmount();
+            return sum;
+        }
+    }
+
+    // Daily rate times days
+    static class BaseRateRule implements PricingRule {
+        public void apply(Vehicle vehicle, int days, List<Quote.Line> lines) {
+            lines.add(new Quote.Line("Base cost", vehicle.getRentalRate() * days));
+        }
+    }
+
+    // A flat per-day charge for vehicles with an add-on such as AC or a helmet
+    static class AddOnRule implements PricingRule {
+        private final String label;
+        private final double perDay;
+        private final Predicate<Vehicle> appliesTo;
+
+        AddOnRule(String label, double perDay, Predicate<Vehicle> appliesTo) {
+            this.label = label;
+            this.perDay = perDay;
+            this.appliesTo = appliesTo;
+        }
+
+        public void apply(Vehicle vehicle, int days, List<Quote.Line> lines) {
+            if (appliesTo.test(vehicle)) lines.add(new Quote.Line(label, perDay * days));
+        }
+    }
+
+    // A percentage off the subtotal for rentals of at least minDays
+    static class DurationDiscountRule implements PricingRule {
+        private final int minDays;
+        private final double percent;
+
+        DurationDiscountRule(int minDays, double percent) {
+            this.minDays = minDays;
+            this.percent = percent;
+        }
+
+        public void apply(Vehicle vehicle, int days, List<Quote.Line> lines) {
+            if (days >= minDays) {
+                lines.add(new Quote.Line(minDays + "+ day discount", -PricingRule.subtotal(lines) * percent / 100, true));
+            }
+        }
+    }
+
+    // A percentage on top of the subtotal for matching vehicles
+    static class SurchargeRule implements PricingRule {
+        private final String label;
+        private final double percent;
+        private final Predicate<Vehicle> appliesTo;
+
+        SurchargeRule(String label, double percent, Predicate<Vehicle> appliesTo) {
+            this.label = label;
+            this.percent = percent;
+            this.appliesTo = appliesTo;
+        }
+
+        public void apply(Vehicle vehicle, int days, List<Quote.Line> lines) {
+            if (appliesTo.test(vehicle)) lines.add(new Quote.Line(label, PricingRule.subtotal(lines) * percent / 100, true));
+        }
+    }
+
+    // A vehicle together with its quote, as returned by bulk quoting
+    static class PricedVehicle {
+        private final Vehicle vehicle;
+        private final Quote quote;
+
+        PricedVehicle(Vehicle vehicle, Quote quote) {
+            this.vehicle = vehicle;
+            this.quote = quote;
+        }
+
+        public Vehicle getVehicle() { return vehicle; }
+        public Quote getQuote() { return quote; }
+    }
+
+    // Runs the pricing rules and caches the resulting quotes per pricing class (vehicle type,
+    // daily rate, add-on flag) and duration, so repeated and bulk quotes reuse earlier work.
+    static class PricingEngine {
+        private static final int MAX_CACHED_QUOTES = 10_000;
+        static final String AC_CHARGE = "AC charge";
+        static final String HELMET_CHARGE = "Helmet charge";
+        // Shared by every RentalSystem and by the vehicles' own cost methods
+        static final PricingEngine DEFAULT = fromSystemProperties();
+
+        private final List<PricingRule> rules;
+        private final Map<List<Object>, Quote> cache = new ConcurrentHashMap<>();
+
+        public PricingEngine(List<PricingRule> rules) {
+            this.rules = new ArrayList<>(rules);
+        }
+
+        // Today's prices: the daily rate plus $5/day for AC and $2/day for a helmet
+        private static List<PricingRule> standardRules() {
+            return new ArrayList<>(Arrays.asList(
+                    new BaseRateRule(),
+                    new AddOnRule(AC_CHARGE, 5, v -> !v.isMotorcycle() && v.hasAddOn()),
+                    new AddOnRule(HELMET_CHARGE, 2, v -> v.isMotorcycle() && v.hasAddOn())));
+        }
+
+        // The standard prices plus the optional rental.pricing.* rules, both off by default: a
+        // surcharge on vehicles at or above a premium daily rate, then a discount on long rentals
+        public static PricingEngine fromSystemProperties() {
+            List<PricingRule> rules = standardRules();
+            double premiumRate = Double.parseDouble(System.getProperty("rental.pricing.premiumRate", "0"));
+            double premiumPercent = Double.parseDouble(System.getProperty("rental.pricing.premiumPercent", "0"));
+            if (premiumRate > 0 && premiumPercent > 0) {
+                rules.add(new SurchargeRule("Premium surcharge", premiumPercent, v -> v.getRentalRate() >= premiumRate));
+            }
+            int discountDays = Integer.getInteger("rental.pricing.discountDays", 0);
+            double discountPercent = Double.parseDouble(System.getProperty("rental.pricing.discountPercent", "0"));
+            if (discountDays > 0 && discountPercent > 0) {
+                rules.add(new DurationDiscountRule(discountDays, discountPercent));
+            }
+            return new PricingEngine(rules);
+        }
+
+        public Quote quote(Vehicle vehicle, int days) {
+            if (days < 1) throw new IllegalArgumentException("Days must be at least 1: " + days);
+            List<Object> key = Arrays.asList(vehicle.isMotorcycle(), vehicle.getRentalRate(), vehicle.hasAddOn(), days);
+            Quote quote = cache.get(key);
+            if (quote == null) {
+                List<Quote.Line> lines = new ArrayList<>();
+                for (PricingRule rule : rules) rule.apply(vehicle, days, lines);
+                quote = new Quote(days, lines);
+                if (cache.size() >= MAX_CACHED_QUOTES) cache.clear();
+                cache.put(key, quote);
+            }
+            return quote;
+        }
+
+        // Prices every vehicle in one pass and returns them cheapest first (ties by ID)
+        public List<PricedVehicle> quoteAll(Iterable<Vehicle> vehicles, int days) {
+            List<PricedVehicle> priced = new ArrayList<>();
+            for (Vehicle vehicle : vehicles) {
+                priced.add(new PricedVehicle(vehicle, quote(vehicle, days)));
+            }
+            priced.sort(Comparator.comparingDouble((PricedVehicle p) -> p.quote.getTotal())
+                    .thenComparingInt(p -> p.vehicle.getId()));
+            return priced;
+        }
+    }
+
+    // Outcome of a registration attempt
+    enum Registration {
+        OK("Registered"),
+        INVALID_USERNAME("Usernames must be 1-" + FleetStore.MAX_TEXT_BYTES
+                + " bytes without spaces, ':' or control characters"),
+        TAKEN("Username already exists"),
+        BUSY("Server busy, try again later");
+
+        private final String message;
+
+        Registration(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() { return message; }
+    }
+
+    // Outcome of a login attempt: a session on success, otherwise why there is none
+    static class LoginResult {
+        enum Status { OK, INVALID_CREDENTIALS, THROTTLED, BUSY }
+
+        private final Status status;
+        private final Session session;
+
+        LoginResult(Status status, Session session) {
+            this.status = status;
+            this.session = session;
+        }
+
+        public Status getStatus() { return status; }
+        public Session getSession() { return session; }
+
+        // A short reason for the front ends to show
+        public String getMessage() {
+            switch (status) {
+                case OK: return "Logged in as " + session.getUser().getUsername();
+                case THROTTLED: return "Too many login attempts, try again later";
+                case BUSY: return "Server busy, try again later";
+                default: return "Invalid credentials";
+            }
+        }
+    }
+
+    // Handle for one logged-in user; operations made on a user's behalf take their session
+    static class Session {
+        private final User user;
+
+        Session(User user) {
+            this.user = user;
+        }
+
+        public User getUser() { return user; }
+    }
+
+    // Bearer tokens for logged-in sessions, so repeat requests skip the credential check.
+    // A session expires once it has been idle for the TTL; every lookup pushes the expiry out.
+    // Expired entries are dropped when looked up and swept every SWEEP_INTERVAL new sessions.
+    static class SessionCache {
+        private static final int SWEEP_INTERVAL = 256;
+
+        private static class Entry {
+            final Session session;
+            volatile long expiresAt;
+
+            Entry(Session session, long expiresAt) {
+                this.session = session;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+        private final long ttlMillis;
+        private final SecureRandom random = new SecureRandom();
+        private final AtomicInteger created = new AtomicInteger();
+
+        public SessionCache(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+
+        // Returns a new unguessable token for the session
+        public String create(Session session) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            long now = System.currentTimeMillis();
+            sessions.put(token, new Entry(session, now + ttlMillis));
+            if (created.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                sessions.values().removeIf(entry -> entry.expiresAt <= now);
+            }
+            return token;
+        }
+
+        // The token's session, or null if it is unknown or has expired
+        public Session get(String token) {
+            Entry entry = sessions.get(token);
+            if (entry == null) return null;
+            long now = System.currentTimeMillis();
+            if (entry.expiresAt <= now) {
+                sessions.remove(token, entry);
+                return null;
+            }
+            entry.expiresAt = now + ttlMillis;
+            return entry.session;
+        }
+
+        public void invalidate(String token) {
+            sessions.remove(token);
+        }
+
+        public int size() { return sessions.size(); }
+    }
+
+    // Approximate sliding-window rate limiter in a fixed amount of memory. Each key hashes to one
+    // cell in each of two rows (a count-min sketch); a cell packs the current window number and
+    // the previous and current window's counts into one long updated with compare-and-set. The
+    // rate is the previous count weighted by how much of it still overlaps the sliding window,
+    // plus the current count, and a key's estimate is the smaller of its two cells. Colliding keys
+    // can only raise an estimate, never lower it, and a key is only throttled when both its
+    // cells are busy.
+    static class SlidingWindowRateLimiter {
+        private static final int ROWS = 2;
+        private static final long MAX_COUNT = 0xFFFF;
+
+        private final int limit;
+        private final long windowMillis;
+        private final int mask;
+        private final AtomicLongArray cells;
+
+        // cellsPerRow is rounded up to a power of two
+        public SlidingWindowRateLimiter(int limit, long windowMillis, int cellsPerRow) {
+            this.limit = limit;
+            this.windowMillis = windowMillis;
+            int size = Integer.highestOneBit(Math.max(1, cellsPerRow - 1)) << 1;
+            this.mask = size - 1;
+            this.cells = new AtomicLongArray(ROWS * size);
+        }
+
+        // Counts one event for the key unless it is already at the limit
+        public boolean tryAcquire(String key) {
+            long now = System.currentTimeMillis();
+            if (estimate(key, now) >= limit) return false;
+            increment(key, now);
+            return true;
+        }
+
+        // Counts one event for the key without checking the limit, e.g. a failed login
+        public void record(String key) {
+            increment(key, System.currentTimeMillis());
+        }
+
+        public boolean isLimited(String key) {
+            return estimate(key, System.currentTimeMillis()) >= limit;
+        }
+
+        private double estimate(String key, long now) {
+            double estimate = Double.MAX_VALUE;
+            for (int row = 0; row < ROWS; row++) {
+                estimate = Math.min(estimate, cellRate(cells.get(index(key, row)), now));
+            }
+            return estimate;
+        }
+
+        private double cellRate(long cell, long now) {
+            long window = (now / windowMillis) & 0xFFFFFFFFL;
+            double remaining = 1 - (now % windowMillis) / (double) windowMillis;
+            long cellWindow = cell >>> 32;
+            long previous = (cell >>> 16) & MAX_COUNT;
+            long current = cell & MAX_COUNT;
+            if (cellWindow == window) return previous * remaining + current;
+            if (cellWindow == ((window - 1) & 0xFFFFFFFFL)) return current * remaining;
+            return 0;
+        }
+
+        private void increment(String key, long now) {
+            long window = (now / windowMillis) & 0xFFFFFFFFL;
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(key, row);
+                while (true) {
+                    long cell = cells.get(index);
+                    long cellWindow = cell >>> 32;
+                    long previous = 0;
+                    long current = 0;
+                    if (cellWindow == window) {
+                        previous = (cell >>> 16) & MAX_COUNT;
+                        current = cell & MAX_COUNT;
+                    } else if (cellWindow == ((window - 1) & 0xFFFFFFFFL)) {
+                        previous = cell & MAX_COUNT;
+                    }
+                    current = Math.min(current + 1, MAX_COUNT);
+                    if (cells.compareAndSet(index, cell, window << 32 | previous << 16 | current)) break;
+                }
+            }
+        }
+
+        // A different mix of the key's hash per row, so keys colliding in one row rarely collide in both
+        private int index(String key, int row) {
+            int h = key.hashCode() * (row == 0 ? 0x9E3779B9 : 0x85EBCA6B);
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+
+    // Lock-free latency histogram. Values fall into log-linear buckets, eight per power of two,
+    // so percentiles are within 12.5% of the true value. Recording is a few atomic adds and
+    // never allocates, so it is cheap enough to leave on in production.
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_COUNT);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry until this value or a larger one is stored
+            }
+        }
+
+        // Values below 16 get a bucket each; above that the top four bits pick the bucket
+        private static int bucketOf(long value) {
+            if (value < 2 * SUB_COUNT) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        // Largest value that falls into the bucket
+        private static long upperBound(int bucket) {
+            if (bucket < 2 * SUB_COUNT) return bucket;
+            int shift = bucket / SUB_COUNT - 1;
+            return ((long) (SUB_COUNT + bucket % SUB_COUNT + 1) << shift) - 1;
+        }
+
+        public long getCount() { return count.sum(); }
+        public long getMaxNanos() { return maxNanos.get(); }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / n;
+        }
+
+        // Value at the given percentile (0-100), reported as its bucket's upper bound
+        public long getPercentileNanos(double percentile) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), maxNanos.get());
+            }
+            return maxNanos.get();
+        }
+    }
+
+    // Named counters, latency histograms and gauges. Callers look up their counters and
+    // histograms once and keep them, so the recording path does no map lookups.
+    static class Metrics {
+        private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+        private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+        private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+        private ScheduledExecutorService reporter;
+
+        public LongAdder counter(String name) {
+            return counters.computeIfAbsent(name, n -> new LongAdder());
+        }
+
+        public LatencyHistogram histogram(String name) {
+            return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+        }
+
+        // A value read at snapshot time, e.g. the current fleet size
+        public void gauge(String name, LongSupplier value) {
+            gauges.put(name, value);
+        }
+
+        // One line per metric, sorted by name within each kind; latencies in microseconds
+        public List<String> snapshot() {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                lines.add(gauge.getKey() + " = " + gauge.getValue().getAsLong());
+            }
+            for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+                lines.add(counter.getKey() + " count=" + counter.getValue().sum());
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+                LatencyHistogram h = entry.getValue();
+                lines.add(String.format("%s count=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+                        entry.getKey(), h.getCount(), h.getMeanNanos() / 1_000,
+                        h.getPercentileNanos(50) / 1_000, h.getPercentileNanos(90) / 1_000,
+                        h.getPercentileNanos(99) / 1_000, h.getMaxNanos() / 1_000));
+            }
+            return lines;
+        }
+
+        // Writes a timestamped snapshot, replacing the file atomically so readers never see half of one
+        public void dumpTo(Path file) throws IOException {
+            List<String> lines = new ArrayList<>();
+            lines.add("# " + Instant.now());
+            lines.addAll(snapshot());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Dumps a snapshot to the file every period until stopReporter is called
+        public synchronized void startReporter(Path file, long periodMillis) {
+            if (reporter != null) return;
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> {
+                try {
+                    dumpTo(file);
+                } catch (IOException e) {
+                    System.out.println("Warning: Could not write metrics file.");
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized void stopReporter() {
+            if (reporter != null) reporter.shutdown();
+            reporter = null;
+        }
+    }
+
+    // A change to rental state, published after the change has been made
+    static class RentalEvent {
+        enum Type { VEHICLE_RENTED, VEHICLE_RETURNED, VEHICLE_ADDED, VEHICLE_REMOVED, USER_REGISTERED }
+
+        private final Type type;
+        private final long timestamp;
+        private final int vehicleId;
+        private final String username;
+        private final int days;
+
+        // vehicleId is 0 and username null where they do not apply
+        RentalEvent(Type type, int vehicleId, String username, int days) {
+            this.type = type;
+            this.timestamp = System.currentTimeMillis();
+            this.vehicleId = vehicleId;
+            this.username = username;
+            this.days = days;
+        }
+
+        public Type getType() { return type; }
+        public long getTimestamp() { return timestamp; }
+        public int getVehicleId() { return vehicleId; }
+        public String getUsername() { return username; }
+        public int getDays() { return days; }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(timestamp) + " " + type
+                    + (vehicleId != 0 ? " vehicle=" + vehicleId : "")
+                    + (username != null ? " user=" + username : "")
+                    + (days != 0 ? " days=" + days : "");
+        }
+    }
+
+    // Receives events in publication order, in batches, on its subscription's own thread
+    interface EventSubscriber {
+        void onEvents(List<RentalEvent> batch) throws Exception;
+    }
+
+    // Fans rental events out to subscribers without making publishers wait for them. Each
+    // subscription has its own bounded ring buffer and consumer thread, so a slow subscriber only
+    // ever fills its own buffer. Publishers claim a slot by advancing the tail with compare-and-set
+    // and then fill it; the consumer drains filled slots in order, hands them over as one batch
+    // and frees them by advancing the head. When a buffer is full the subscription's backpressure
+    // policy decides: DROP discards the event and counts it, BLOCK makes the publisher wait.
+    static class EventBus {
+        enum Backpressure { DROP, BLOCK }
+
+        private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+        private final Metrics metrics;
+
+        public EventBus(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        static class Subscription {
+            private final String name;
+            private final EventSubscriber subscriber;
+            private final AtomicReferenceArray<RentalEvent> slots;
+            private final int mask;
+            private final int maxBatch;
+            private final Backpressure backpressure;
+            private final AtomicLong tail = new AtomicLong();
+            private volatile long head;
+            private final LongAdder dropped = new LongAdder();
+            private final Thread consumer;
+            private volatile boolean running = true;
+
+            private Subscription(String name, EventSubscriber subscriber, int capacity, int maxBatch, Backpressure backpressure) {
+                int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+                this.name = name;
+                this.subscriber = subscriber;
+                this.slots = new AtomicReferenceArray<>(size);
+                this.mask = size - 1;
+                this.maxBatch = maxBatch;
+                this.backpressure = backpressure;
+                this.consumer = new Thread(this::consume, "events-" + name);
+                consumer.setDaemon(true);
+            }
+
+            private void offer(RentalEvent event) {
+                while (true) {
+                    long claimed = tail.get();
+                    if (claimed - head >= slots.length()) {
+                        if (backpressure == Backpressure.DROP || !running) {
+                            dropped.increment();
+                            return;
+                        }
+                        LockSupport.parkNanos(1_000L);
+                        continue;
+                    }
+                    if (tail.compareAndSet(claimed, claimed + 1)) {
+                        slots.set((int) claimed & mask, event);
+                        return;
+                    }
+                }
+            }
+
+            private void consume() {
+                List<RentalEvent> batch = new ArrayList<>(maxBatch);
+                while (running || head != tail.get()) {
+                    long next = head;
+                    RentalEvent event;
+                    while (batch.size() < maxBatch && (event = slots.get((int) next & mask)) != null) {
+                        slots.set((int) next & mask, null);
+                        batch.add(event);
+                        next++;
+                    }
+                    if (batch.isEmpty()) {
+                        // Empty, or the next slot is claimed but not yet filled
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    head = next;
+                    try {
+                        subscriber.onEvents(batch);
+                    } catch (Exception e) {
+                        System.out.println("Warning: Event subscriber " + name + " failed: " + e.getMessage());
+                    }
+                    batch.clear();
+                }
+            }
+
+            public String getName() { return name; }
+            public long getDropped() { return dropped.sum(); }
+            public long getPending() { return tail.get() - head; }
+        }
+
+        // Starts a consumer thread delivering batches of up to maxBatch events
+        public Subscription subscribe(String name, EventSubscriber subscriber, int capacity, int maxBatch,
+                                      Backpressure backpressure) {
+            Subscription subscription = new Subscription(name, subscriber, capacity, maxBatch, backpressure);
+            metrics.gauge("events." + name + ".pending", subscription::getPending);
+            metrics.gauge("events." + name + ".dropped", subscription::getDropped);
+            subscriptions.add(subscription);
+            subscription.consumer.start();
+            return subscription;
+        }
+
+        // Stops delivery after the events already buffered have been handed over
+        public void unsubscribe(Subscription subscription) {
+            subscriptions.remove(subscription);
+            subscription.running = false;
+            LockSupport.unpark(subscription.consumer);
+            try {
+                subscription.consumer.join(5_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Lets publishers skip building events nobody will receive
+        public boolean hasSubscribers() {
+            return !subscriptions.isEmpty();
+        }
+
+        public void publish(RentalEvent event) {
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(event);
+            }
+        }
+
+        public void close() {
+            for (Subscription subscription : subscriptions) {
+                unsubscribe(subscription);
+            }
+        }
+    }
+
+    // Appends every event as a line to an audit file, one write per batch
+    static class AuditLogSubscriber implements EventSubscriber, Closeable {
+        private final Writer writer;
+
+        public AuditLogSubscriber(Path file) throws IOException {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        public void onEvents(List<RentalEvent> batch) throws IOException {
+            for (RentalEvent event : batch) {
+                writer.write(event.toString());
+                writer.write('\n');
+            }
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    // Core rental system managing vehicles, users, and rental operations.
+    // Safe for concurrent sessions: collections are concurrent and each vehicle and user
+    // is claimed with compare-and-set, so contention is per vehicle rather than global.
+    static class RentalSystem {
+        // All vehicles keyed by their stable ID with an index of the available ones; the compact
+        // store is used when rental.fleet.compactCapacity gives it a capacity
+        private final VehicleStore vehicles;
+        private final Map<String, User> users;
+        // Open rentals by vehicle, plus the reverse index from each renter to their rentals,
+        // both kept in sync by rent and return
+        private final Map<Integer, Rental> rentals;
+        private final Map<User, Set<Rental>> rentalsByUser;
+        // Future reservations by ID and by user; the bookings themselves live in each vehicle's calendar
+        private final Map<Long, Reservation> reservations = new ConcurrentHashMap<>();
+        private final Map<User, Set<Reservation>> reservationsByUser = new ConcurrentHashMap<>();
+        private final AtomicLong nextReservationId = new AtomicLong(1);
+        private volatile RentalPolicy rentalPolicy =
+                RentalPolicy.maxActiveRentals(Integer.getInteger("rental.maxActiveRentals", 1));
+        // The same engine the vehicles' own cost methods use, so both always agree
+        private final PricingEngine pricingEngine = PricingEngine.DEFAULT;
+        private final AtomicInteger nextVehicleId = new AtomicInteger(1);
+        private UserJournal userJournal;
+        private FleetStore fleetStore;
+        private ReservationJournal reservationJournal;
+        private RentalLedger ledger;
+        private final PasswordHasher passwordHasher;
+        // Logged-in sessions by token, and login throttling: failed attempts per username and
+        // all attempts per source address, each over a sliding window
+        private final SessionCache sessionCache = new SessionCache(Long.getLong("rental.session.ttlMs", 30 * 60_000L));
+        private final SlidingWindowRateLimiter failedLoginsByUser = new SlidingWindowRateLimiter(
+                Integer.getInteger("rental.login.maxFailuresPerUser", 5),
+                Long.getLong("rental.login.windowMs", 60_000L), 1 << 16);
+        private final SlidingWindowRateLimiter loginsBySource = new SlidingWindowRateLimiter(
+                Integer.getInteger("rental.login.maxPerSource", 30),
+                Long.getLong("rental.login.windowMs", 60_000L), 1 << 16);
+        // Latency of each public operation plus failure counters, resolved once so recording is cheap
+        private final Metrics metrics = new Metrics();
+        private final LatencyHistogram loadUsersLatency = metrics.histogram("loadUsers");
+        private final LatencyHistogram saveUserLatency = metrics.histogram("saveUser");
+        private final LatencyHistogram registerLatency = metrics.histogram("registerUser");
+        private final LatencyHistogram loginLatency = metrics.histogram("login");
+        private final LatencyHistogram rentLatency = metrics.histogram("rentVehicle");
+        private final LatencyHistogram returnLatency = metrics.histogram("returnVehicle");
+        private final LongAdder loginFailures = metrics.counter("login.failures");
+        private final LongAdder loginsThrottled = metrics.counter("login.throttled");
+        private final LongAdder loginsBusy = metrics.counter("login.busy");
+        private final EventBus eventBus = new EventBus(metrics);
+        private AuditLogSubscriber auditLog;
+        private Path metricsFile;
+        private final LongAdder rentFailures = metrics.counter("rentVehicle.failures");
+        private final LongAdder saveFailures = metrics.counter("save.failures");
+        static final String USER_FILE = "users.txt";
+        private static final String USER_LOG_FILE = "users.log";
+        private static final String FLEET_FILE = "fleet.dat";
+        private static final String RESERVATION_FILE = "reservations.log";
+        private static final String LEDGER_DIR = "ledger";
+
+        public RentalSystem() {
+            this(Paths.get("."));
+        }
+
+        // Keeps its data files in the given directory
+        public RentalSystem(Path dataDir) {
+            int compactCapacity = Integer.getInteger("rental.fleet.compactCapacity", 0);
+            vehicles = compactCapacity > 0 ? new CompactFleet(compactCapacity) : new IndexedFleet();
+            users = new ConcurrentHashMap<>();
+            rentals = new ConcurrentHashMap<>();
+            rentalsByUser = new ConcurrentHashMap<>();
+            passwordHasher = PasswordHasher.fromSystemProperties();
+            loadUsers(dataDir);
+            users.putIfAbsent("admin", new User("admin", "admin123"));
+            loadFleet(dataDir);
+            loadReservations(dataDir);
+            try {
+                ledger = new RentalLedger(dataDir.resolve(LEDGER_DIR));
+            } catch (IOException e) {
+                System.out.println("Warning: Could not open rental history.");
+            }
+            metrics.gauge("fleet.size", vehicles::size);
+            metrics.gauge("fleet.available", vehicles::availableCount);
+            metrics.gauge("rentals.active", () -> rentals.size());
+            metrics.gauge("reservations", () -> reservations.size());
+            metrics.gauge("users", () -> users.size());
+            metrics.gauge("sessions", () -> sessionCache.size());
+            metrics.gauge("ledger.rows", () -> ledger == null ? 0 : ledger.size());
+            // Relative paths are taken per data directory, so each shard of a router keeps its own files
+            Path auditFile = dataFile(dataDir, "rental.audit.file");
+            metricsFile = dataFile(dataDir, "rental.metrics.file");
+            if (metricsFile != null) {
+                metrics.startReporter(metricsFile, Long.getLong("rental.metrics.periodMs", 60_000L));
+            }
+            if (auditFile != null) {
+                try {
+                    auditLog = new AuditLogSubscriber(auditFile);
+                    eventBus.subscribe("audit", auditLog, 8192, 256, EventBus.Backpressure.DROP);
+                } catch (IOException e) {
+                    System.out.println("Warning: Could not open audit file.");
+                }
+            }
+        }
+
+        private static Path dataFile(Path dataDir, String property) {
+            String path = System.getProperty(property);
+            return path == null ? null : dataDir.resolve(path);
+        }
+
+        // Subscribers see every change made after they subscribe
+        public EventBus getEventBus() { return eventBus; }
+
+        private void publish(RentalEvent.Type type, int vehicleId, String username, int days) {
+            if (eventBus.hasSubscribers()) eventBus.publish(new RentalEvent(type, vehicleId, username, days));
+        }
+
+        // Persistent storage operations
+        private void loadUsers(Path dataDir) {
+            try {
+                long start = System.nanoTime();
+                userJournal = new UserJournal(dataDir.resolve(USER_FILE), dataDir.resolve(USER_LOG_FILE), users);
+                long elapsed = System.nanoTime() - start;
+                loadUsersLatency.record(elapsed);
+                System.out.printf("Loaded %d user records in %d ms%n", userJournal.getRecoveredRecords(), elapsed / 1_000_000);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not load users file.");
+            }
+        }
+
+        // Restores the fleet and its open rentals, or seeds the default fleet on first run
+        private void loadFleet(Path dataDir) {
+            try {
+                fleetStore = new FleetStore(dataDir.resolve(FLEET_FILE));
+                fleetStore.load(this::restoreVehicle);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not load fleet file.");
+            }
+            // Demo vehicles only for a brand-new fleet, not one the admin has emptied
+            if (fleetStore == null || fleetStore.isNew()) {
+                addVehicle(new Car("Civic", "Honda", 50.0, true));
+                addVehicle(new Car("Corolla", "Toyota", 45.0, true));
+                addVehicle(new Motorcycle("Ninja", "Kawasaki", 35.0, true));
+            }
+        }
+
+        private void restoreVehicle(Vehicle vehicle, String renterName, int days, long rentedAt) {
+            int id = vehicle.getId();
+            nextVehicleId.accumulateAndGet(id + 1, Math::max);
+            Vehicle stored = vehicles.add(vehicle);
+            User renter = renterName == null ? null : users.get(renterName);
+            // Open rentals are restored even if they exceed the current policy
+            if (renter != null && renter.tryStartRental(Integer.MAX_VALUE) && stored.tryReserve(renter)) {
+                vehicles.unindexAvailable(stored);
+                Rental rental = new Rental(renter, stored, days, rentedAt);
+                stored.getCalendar().add(rental.getBooking());
+                trackRental(rental);
+                return;
+            }
+            // Renter no longer exists: the vehicle stays available
+            if (renterName != null) saveVehicle(stored, null);
+        }
+
+        // Puts journaled reservations back on their vehicles' calendars, continuing the ID sequence
+        private void loadReservations(Path dataDir) {
+            try {
+                reservationJournal = new ReservationJournal(dataDir.resolve(RESERVATION_FILE));
+                nextReservationId.set(reservationJournal.getMaxId() + 1);
+                reservationJournal.load(this::restoreReservation);
+            } catch (IOException e) {
+                System.out.println("Warning: Could not load reservations file.");
+            }
+        }
+
+        // Reservations whose vehicle or user is gone, that have ended, or that clash with a
+        // restored rental are dropped
+        private void restoreReservation(long id, int vehicleId, LocalDate start, LocalDate end, String username) {
+            Vehicle vehicle = vehicles.get(vehicleId);
+            User user = users.get(username);
+            if (vehicle != null && user != null && end.isAfter(LocalDate.now())) {
+                Reservation reservation = new Reservation(id, user, vehicle, start, end);
+                BookingCalendar calendar = vehicle.getCalendar();
+                synchronized (calendar) {
+                    if (calendar.conflict(start, end, null) == null) {
+                        calendar.add(reservation);
+                        trackReservation(reservation);
+                        return;
+                    }
+                }
+            }
+            saveReservationRemoval(id);
+        }
+
+        private void saveReservation(Reservation reservation) {
+            try {
+                if (reservationJournal != null) reservationJournal.append(reservation);
+            } catch (IOException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save reservations to file.");
+            }
+        }
+
+        private void saveReservationRemoval(long reservationId) {
+            try {
+                if (reservationJournal != null) reservationJournal.appendRemoval(reservationId);
+            } catch (IOException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save reservations to file.");
+            }
+        }
+
+        private void saveVehicle(Vehicle vehicle, Rental rental) {
+            try {
+                if (fleetStore != null) fleetStore.write(vehicle, rental);
+            } catch (IOException | IllegalArgumentException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save fleet to file.");
+            }
+        }
+
+        private void saveUser(User user) {
+            long start = System.nanoTime();
+            try {
+                if (userJournal == null) throw new IOException("User journal is not open");
+                userJournal.append(user);
+            } catch (IOException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save users to file.");
+            } finally {
+                saveUserLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        private void saveUserRemoval(String username) {
+            try {
+                if (userJournal == null) throw new IOException("User journal is not open");
+                userJournal.appendRemoval(username);
+            } catch (IOException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save users to file.");
+            }
+        }
+
+        public Metrics getMetrics() { return metrics; }
+
+        public void close() {
+            eventBus.close();
+            try {
+                if (auditLog != null) auditLog.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save audit file.");
+            }
+            metrics.stopReporter();
+            if (metricsFile != null) {
+                try {
+                    metrics.dumpTo(metricsFile);
+                } catch (IOException e) {
+                    System.out.println("Warning: Could not write metrics file.");
+                }
+            }
+            passwordHasher.shutdown();
+            try {
+                if (userJournal != null) userJournal.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save users to file.");
+            }
+            try {
+                if (fleetStore != null) fleetStore.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save fleet to file.");
+            }
+            try {
+                if (reservationJournal != null) reservationJournal.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save reservations to file.");
+            }
+            try {
+                if (ledger != null) ledger.close();
+            } catch (IOException e) {
+                System.out.println("Error: Could not save rental history.");
+            }
+        }
+
+        // User management methods
+        public boolean registerUser(String username, String password) {
+            return tryRegister(username, password) == Registration.OK;
+        }
+
+        // Usernames are capped at the width of the renter field in the fleet file and may not hold
+        // whitespace, ':' or control characters, which would forge or break "username:password"
+        // lines in the user files. Fails if the name is taken or the hashing pool is saturated.
+        public Registration tryRegister(String username, String password) {
+            long start = System.nanoTime();
+            try {
+                if (!isValidUsername(username)) return Registration.INVALID_USERNAME;
+                if (users.containsKey(username)) return Registration.TAKEN;
+                String hashed = passwordHasher.runBounded(() -> passwordHasher.hash(password));
+                if (hashed == null) return Registration.BUSY;
+                User user = new User(username, hashed);
+                if (users.putIfAbsent(username, user) != null) return Registration.TAKEN;
+                saveUser(user);
+                publish(RentalEvent.Type.USER_REGISTERED, 0, username, 0);
+                return Registration.OK;
+            } finally {
+                registerLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        static boolean isValidUsername(String username) {
+            if (username.isEmpty() || !FleetStore.fits(username)) return false;
+            for (int i = 0; i < username.length(); i++) {
+                char c = username.charAt(i);
+                if (c == ':' || Character.isWhitespace(c) || Character.isISOControl(c)) return false;
+            }
+            return true;
+        }
+
+        // Deletes an account, given its password, that holds no rentals or reservations; the router
+        // uses this to undo a registration that did not go through on every branch
+        public boolean unregisterUser(String username, String password) {
+            User user = users.get(username);
+            if (user == null || user.getActiveRentalCount() > 0 || reservationsByUser.containsKey(user)) return false;
+            Boolean authenticated = passwordHasher.runBounded(() -> user.authenticate(password, passwordHasher));
+            if (!Boolean.TRUE.equals(authenticated) || !users.remove(username, user)) return false;
+            saveUserRemoval(username);
+            return true;
+        }
+
+        public boolean isUserExists(String username) {
+            return users.containsKey(username);
+        }
+
+        // Returns a new session for the user, or null if the credentials are wrong, the login is
+        // throttled or the hashing pool is saturated. Legacy plaintext passwords are rehashed on success.
+        public Session login(String username, String password) {
+            return tryLogin(username, password, null).getSession();
+        }
+
+        // As login(username, password), also throttling by the caller's source address when known,
+        // and saying why a login failed. Throttled attempts are turned away before any password
+        // hashing. Only a wrong password counts against the username; a login the saturated
+        // hashing pool could not take is reported as BUSY and not held against the user.
+        public LoginResult tryLogin(String username, String password, String source) {
+            long start = System.nanoTime();
+            try {
+                if ((source != null && !loginsBySource.tryAcquire(source)) || failedLoginsByUser.isLimited(username)) {
+                    loginsThrottled.increment();
+                    return new LoginResult(LoginResult.Status.THROTTLED, null);
+                }
+                User user = users.get(username);
+                Boolean authenticated = user == null ? null : passwordHasher.runBounded(() -> {
+                    String stored = user.password;
+                    if (!user.authenticate(password, passwordHasher)) return false;
+                    if (passwordHasher.needsRehash(stored)) {
+                        user.password = passwordHasher.hash(password);
+                        saveUser(user);
+                    }
+                    return true;
+                });
+                if (Boolean.TRUE.equals(authenticated)) return new LoginResult(LoginResult.Status.OK, new Session(user));
+                if (user != null && authenticated == null) {
+                    loginsBusy.increment();
+                    return new LoginResult(LoginResult.Status.BUSY, null);
+                }
+                loginFailures.increment();
+                failedLoginsByUser.record(username);
+                return new LoginResult(LoginResult.Status.INVALID_CREDENTIALS, null);
+            } finally {
+                loginLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        // Returns a token for a session from tryLogin, for front ends that hand out bearer tokens
+        public String openSession(Session session) {
+            return sessionCache.create(session);
+        }
+
+        // The session behind a token from openSession, or null if it is unknown or expired
+        public Session getSession(String token) {
+            return sessionCache.get(token);
+        }
+
+        public void closeSession(String token) {
+            sessionCache.invalidate(token);
+        }
+
+        public void setRentalPolicy(RentalPolicy rentalPolicy) { this.rentalPolicy = rentalPolicy; }
+        public RentalPolicy getRentalPolicy() { return rentalPolicy; }
+
+        public boolean canRentVehicle(Session session) {
+            if (session == null) return false;
+            User user = session.getUser();
+            return user.getActiveRentalCount() < rentalPolicy.maxActiveRentals(user);
+        }
+
+        // Availability queries backed by the index; the returned collections are read-only views
+        public Collection<Vehicle> getAvailableVehicles() {
+            return vehicles.available(0);
+        }
+
+        // Available vehicles with an ID greater than afterId, for paging through the fleet
+        public Collection<Vehicle> getAvailableVehicles(int afterId) {
+            return vehicles.available(afterId);
+        }
+
+        public int getAvailableCount() { return vehicles.availableCount(); }
+
+        // Available vehicles matching the query, cheapest first, served from the store's indexes
+        public List<Vehicle> searchVehicles(VehicleQuery query) {
+            return vehicles.search(query);
+        }
+
+        public Quote quote(Vehicle vehicle, int days) {
+            return pricingEngine.quote(vehicle, days);
+        }
+
+        // Every available vehicle matching the query, priced for the given days, cheapest first,
+        // truncated to the query's limit
+        public List<PricedVehicle> searchVehiclesByPrice(VehicleQuery query, int days) {
+            int limit = query.limit;
+            List<PricedVehicle> priced = pricingEngine.quoteAll(vehicles.search(query.copy().limit(Integer.MAX_VALUE)), days);
+            return priced.size() > limit ? new ArrayList<>(priced.subList(0, limit)) : priced;
+        }
+
+        public Collection<Vehicle> getAllVehicles() {
+            return vehicles.all(0);
+        }
+
+        public int getVehicleCount() { return vehicles.size(); }
+
+        public Vehicle getVehicle(int vehicleId) {
+            return vehicles.get(vehicleId);
+        }
+
+        // Vehicle rental operations. Under the vehicle's calendar lock the booked days are checked
+        // for conflicts, then one of the user's rental slots is claimed and finally the vehicle
+        // itself, so a vehicle can never be double-rented or rented over someone's reservation.
+        public boolean rentVehicle(Session session, int vehicleId, int days) {
+            Vehicle vehicle = vehicles.get(vehicleId);
+            long start = System.nanoTime();
+            boolean rented = session != null && vehicle != null && days >= 1
+                    && rent(session.getUser(), vehicle, days, null) != null;
+            if (!rented) rentFailures.increment();
+            rentLatency.record(System.nanoTime() - start);
+            return rented;
+        }
+
+        // claimed is a reservation of the renter's being turned into this rental, if any. Accounts
+        // from before the username limit may have names too long for the fleet file, and a rental
+        // that cannot be saved would be lost on restart, so those users cannot rent.
+        private Rental rent(User user, Vehicle vehicle, int days, Reservation claimed) {
+            if (!FleetStore.fits(user.getUsername())) return null;
+            Rental rental = new Rental(user, vehicle, days, System.currentTimeMillis());
+            Reservation booking = rental.getBooking();
+            BookingCalendar calendar = vehicle.getCalendar();
+            synchronized (calendar) {
+                if (calendar.conflict(booking.getStart(), booking.getEnd(), claimed) != null) return null;
+                if (!user.tryStartRental(rentalPolicy.maxActiveRentals(user))) return null;
+                if (!vehicle.tryReserve(user)) {
+                    user.endRental();
+                    return null;
+                }
+                if (claimed != null) {
+                    calendar.remove(claimed);
+                    untrackReservation(claimed);
+                }
+                calendar.add(booking);
+            }
+            vehicles.unindexAvailable(vehicle);
+            trackRental(rental);
+            saveVehicle(vehicle, rental);
+            publish(RentalEvent.Type.VEHICLE_RENTED, vehicle.getId(), user.getUsername(), days);
+            return rental;
+        }
+
+        private void trackRental(Rental rental) {
+            rentals.put(rental.getVehicle().getId(), rental);
+            rentalsByUser.computeIfAbsent(rental.getRenter(), u -> ConcurrentHashMap.newKeySet()).add(rental);
+        }
+
+        private void untrackRental(Rental rental) {
+            rentalsByUser.computeIfPresent(rental.getRenter(), (u, set) -> {
+                set.remove(rental);
+                return set.isEmpty() ? null : set;
+            });
+        }
+
+        // One of the user's open rentals (their only one under the default policy), or null
+        public Rental getUserRental(Session session) {
+            Set<Rental> userRentals = session == null ? null : rentalsByUser.get(session.getUser());
+            if (userRentals == null) return null;
+            Iterator<Rental> it = userRentals.iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+
+        public Collection<Rental> getUserRentals(Session session) {
+            Set<Rental> userRentals = session == null ? null : rentalsByUser.get(session.getUser());
+            return userRentals == null ? Collections.emptySet() : Collections.unmodifiableSet(userRentals);
+        }
+
+        public Vehicle getUserRentedVehicle(Session session) {
+            Rental rental = getUserRental(session);
+            return rental == null ? null : rental.getVehicle();
+        }
+
+        // Every open rental, i.e. who has what; a read-only view for the admin screens
+        public Collection<Rental> getActiveRentals() {
+            return Collections.unmodifiableCollection(rentals.values());
+        }
+
+        public int getActiveRentalCount() { return rentals.size(); }
+
+        // The open rental of the vehicle, or null if it is not rented
+        public Rental getRental(int vehicleId) { return rentals.get(vehicleId); }
+
+        // Returns the user's rental (see getUserRental), or null if they had nothing rented
+        public Rental returnVehicle(Session session) {
+            Rental rental = getUserRental(session);
+            return rental == null ? null : returnVehicle(session, rental.getVehicle().getId());
+        }
+
+        // Returns the closed rental, or null if the user was not renting that vehicle.
+        // The vehicle is re-indexed before it is released so a concurrent renter's
+        // index removal can never be overtaken by this insert.
+        public Rental returnVehicle(Session session, int vehicleId) {
+            long start = System.nanoTime();
+            try {
+                return release(session, vehicleId);
+            } finally {
+                returnLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        private Rental release(Session session, int vehicleId) {
+            Rental rental = rentals.get(vehicleId);
+            if (session == null || rental == null || rental.getRenter() != session.getUser()
+                    || !rentals.remove(vehicleId, rental)) {
+                return null;
+            }
+            untrackRental(rental);
+            Vehicle rentedVehicle = rental.getVehicle();
+            BookingCalendar calendar = rentedVehicle.getCalendar();
+            synchronized (calendar) {
+                calendar.remove(rental.getBooking());
+            }
+            saveVehicle(rentedVehicle, null);
+            vehicles.indexAvailable(rentedVehicle);
+            rentedVehicle.release();
+            rental.getRenter().endRental();
+            recordHistory(rental, System.currentTimeMillis());
+            publish(RentalEvent.Type.VEHICLE_RETURNED, vehicleId, rental.getRenter().getUsername(), rental.getDays());
+            return rental;
+        }
+
+        // Appends the closed rental to the ledger, charged for the days it was booked for
+        private void recordHistory(Rental rental, long returnedAt) {
+            if (ledger == null) return;
+            Vehicle vehicle = rental.getVehicle();
+            double baseCost = vehicle.getRentalRate() * rental.getDays();
+            double totalCost = pricingEngine.quote(vehicle, rental.getDays()).getTotal();
+            try {
+                ledger.append(vehicle.getId(), rental.getRenter().getUsername(), rental.getStartedAt(), returnedAt,
+                        rental.getDays(), baseCost, totalCost - baseCost);
+            } catch (IOException e) {
+                saveFailures.increment();
+                System.out.println("Error: Could not save rental history.");
+            }
+        }
+
+        // Rental history reports over [from, to); see RentalLedger
+        public SortedMap<LocalDate, Double> getRevenuePerDay(LocalDate from, LocalDate to) {
+            return ledger == null ? new TreeMap<>() : ledger.revenuePerDay(from, to);
+        }
+
+        public Map<Integer, Double> getUtilizationPerVehicle(LocalDate from, LocalDate to) {
+            return ledger == null ? new TreeMap<>() : ledger.utilizationPerVehicle(from, to);
+        }
+
+        public List<RentalLedger.RenterTotal> getTopRenters(LocalDate from, LocalDate to, int limit) {
+            return ledger == null ? new ArrayList<>() : ledger.topRenters(from, to, limit);
+        }
+
+        // Reservations. Each vehicle's calendar answers conflict checks in logarithmic time.
+        // Every reservation made or dropped is journaled, so they survive a restart.
+        public Reservation reserveVehicle(Session session, int vehicleId, LocalDate start, LocalDate end) {
+            Vehicle vehicle = vehicles.get(vehicleId);
+            if (session == null || vehicle == null || !start.isBefore(end) || start.isBefore(LocalDate.now())) {
+                return null;
+            }
+            User user = session.getUser();
+            Set<Reservation> held = reservationsByUser.get(user);
+            if (held != null) expireReservations(held);
+            held = reservationsByUser.get(user);
+            if (held != null && held.size() >= rentalPolicy.maxReservations(user)) return null;
+
+            Reservation reservation = new Reservation(nextReservationId.getAndIncrement(), user, vehicle, start, end);
+            BookingCalendar calendar = vehicle.getCalendar();
+            synchronized (calendar) {
+                if (vehicle.isRetired() || calendar.conflict(start, end, null) != null) return null;
+                calendar.add(reservation);
+            }
+            trackReservation(reservation);
+            saveReservation(reservation);
+            return reservation;
+        }
+
+        public boolean cancelReservation(Session session, long reservationId) {
+            Reservation reservation = reservations.get(reservationId);
+            if (session == null || reservation == null || reservation.getUser() != session.getUser()) return false;
+            BookingCalendar calendar = reservation.getVehicle().getCalendar();
+            synchronized (calendar) {
+                if (reservations.get(reservationId) != reservation) return false;
+                calendar.remove(reservation);
+                untrackReservation(reservation);
+            }
+            return true;
+        }
+
+        private void trackReservation(Reservation reservation) {
+            reservations.put(reservation.getId(), reservation);
+            reservationsByUser.computeIfAbsent(reservation.getUser(), u -> ConcurrentHashMap.newKeySet()).add(reservation);
+        }
+
+        // Every way a reservation ends (cancelled, picked up or expired) comes through here
+        private void untrackReservation(Reservation reservation) {
+            reservations.remove(reservation.getId());
+            reservationsByUser.computeIfPresent(reservation.getUser(), (u, set) -> {
+                set.remove(reservation);
+                return set.isEmpty() ? null : set;
+            });
+            saveReservationRemoval(reservation.getId());
+        }
+
+        // Drops the given reservations that ended without being picked up, so they stop counting
+        // against their user's quota and no longer block removing their vehicle. Rental bookings
+        // are not tracked as reservations and are left alone.
+        private void expireReservations(Collection<Reservation> candidates) {
+            LocalDate today = LocalDate.now();
+            for (Reservation reservation : new ArrayList<>(candidates)) {
+                if (reservation.getEnd().isAfter(today)) continue;
+                BookingCalendar calendar = reservation.getVehicle().getCalendar();
+                synchronized (calendar) {
+                    if (reservations.get(reservation.getId()) != reservation) continue;
+                    calendar.remove(reservation);
+                    untrackReservation(reservation);
+                }
+            }
+        }
+
+        // Turns a reservation that covers today into a rental for its remaining days
+        public Rental pickUpReservation(Session session, long reservationId) {
+            Reservation reservation = reservations.get(reservationId);
+            LocalDate today = LocalDate.now();
+            if (session == null || reservation == null || reservation.getUser() != session.getUser()
+                    || today.isBefore(reservation.getStart()) || !today.isBefore(reservation.getEnd())) {
+                return null;
+            }
+            int days = (int) ChronoUnit.DAYS.between(today, reservation.getEnd());
+            return rent(session.getUser(), reservation.getVehicle(), days, reservation);
+        }
+
+        public Collection<Reservation> getUserReservations(Session session) {
+            if (session == null) return Collections.emptySet();
+            Set<Reservation> held = reservationsByUser.get(session.getUser());
+            if (held != null) {
+                expireReservations(held);
+                held = reservationsByUser.get(session.getUser());
+            }
+            return held == null ? Collections.emptySet() : Collections.unmodifiableSet(held);
+        }
+
+        public boolean isVehicleFree(int vehicleId, LocalDate start, LocalDate end) {
+            Vehicle vehicle = vehicles.get(vehicleId);
+            return vehicle != null && start.isBefore(end) && isFree(vehicle, start, end);
+        }
+
+        // Vehicles with no booking in [start, end), paged by ID. Vehicles that were never booked
+        // are accepted without touching a calendar; the rest cost one calendar lookup each.
+        // An empty or reversed range matches nothing.
+        public List<Vehicle> getVehiclesFreeBetween(LocalDate start, LocalDate end, int afterId, int limit) {
+            List<Vehicle> free = new ArrayList<>();
+            if (!start.isBefore(end)) return free;
+            for (Vehicle vehicle : vehicles.all(afterId)) {
+                if (free.size() >= limit) break;
+                if (isFree(vehicle, start, end)) free.add(vehicle);
+            }
+            return free;
+        }
+
+        private static boolean isFree(Vehicle vehicle, LocalDate start, LocalDate end) {
+            if (vehicle.isRetired()) return false;
+            if (!vehicle.hasCalendar()) return true;
+            BookingCalendar calendar = vehicle.getCalendar();
+            synchronized (calendar) {
+                return calendar.conflict(start, end, null) == null;
+            }
+        }
+
+        public boolean isAdmin(Session session) {
+            return session != null && session.getUser().getUsername().equals("admin");
+        }
+
+        // Admin operations. A new vehicle needs a brand and model that fit the fleet file's
+        // fixed-width fields and a positive daily rate; anything else is an IllegalArgumentException.
+        public static void validate(Vehicle vehicle) {
+            if (vehicle.getBrand().isEmpty() || vehicle.getModel().isEmpty()) {
+                throw new IllegalArgumentException("Brand and model are required");
+            }
+            if (!FleetStore.fits(vehicle.getBrand()) || !FleetStore.fits(vehicle.getModel())) {
+                throw new IllegalArgumentException("Brand and model must be at most "
+                        + FleetStore.MAX_TEXT_BYTES + " bytes");
+            }
+            double rate = vehicle.getRentalRate();
+            if (!(rate > 0) || Double.isInfinite(rate)) {
+                throw new IllegalArgumentException("Rate must be a positive number: " + rate);
+            }
+        }
+
+        public void addVehicle(Vehicle vehicle) {
+            validate(vehicle);
+            vehicle.setId(nextVehicleId.getAndIncrement());
+            try {
+                if (fleetStore != null) fleetStore.insert(vehicle);
+            } catch (IOException e) {
+                System.out.println("Error: Could not save fleet to file.");
+            }
+            vehicles.add(vehicle);
+            publish(RentalEvent.Type.VEHICLE_ADDED, vehicle.getId(), null, 0);
+        }
+
+        // Adds a batch of new vehicles with one fleet-file write per run of slots and one catalog
+        // update per brand and model. Every vehicle is validated first, so a bad one adds none.
+        public void addVehicles(List<Vehicle> batch) {
+            if (batch.isEmpty()) return;
+            for (Vehicle vehicle : batch) validate(vehicle);
+            int firstId = nextVehicleId.getAndAdd(batch.size());
+            for (Vehicle vehicle : batch) vehicle.setId(firstId++);
+            try {
+                if (fleetStore != null) fleetStore.insertAll(batch);
+            } catch (IOException e) {
+                System.out.println("Error: Could not save fleet to file.");
+            }
+            vehicles.addAll(batch);
+            if (eventBus.hasSubscribers()) {
+                for (Vehicle vehicle : batch) publish(RentalEvent.Type.VEHICLE_ADDED, vehicle.getId(), null, 0);
+            }
+        }
+
+        // Only vehicles that are neither rented nor reserved can be removed; reservations that
+        // ended without a pick-up do not count
+        public boolean removeVehicle(int vehicleId) {
+            Vehicle vehicle = vehicles.get(vehicleId);
+            if (vehicle == null) return false;
+            boolean retired;
+            BookingCalendar calendar = vehicle.getCalendar();
+            synchronized (calendar) {
+                expireReservations(calendar.endedBy(LocalDate.now()));
+                retired = calendar.isEmpty() && vehicle.tryRetire();
+            }
+            if (retired) {
+                vehicles.remove(vehicle);
+                try {
+                    if (fleetStore != null) fleetStore.delete(vehicle);
+                } catch (IOException e) {
+                    System.out.println("Error: Could not save fleet to file.");
+                }
+                publish(RentalEvent.Type.VEHICLE_REMOVED, vehicleId, null, 0);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Bulk fleet import and export as CSV. Both stream: import reads one row at a time and hands
+    // vehicles to the system in batches; export writes each vehicle as it walks the fleet.
+    // The header names the columns, so an exported file can be imported again as is:
+    //   id,type,brand,model,rate,feature,status,renter,days
+    // Import needs type, brand, model, rate and feature (y/n: AC for cars, helmet for motorcycles)
+    // and ignores any other column.
+    static class FleetCsv {
+        static final int BATCH_SIZE = 1000;
+        private static final int MAX_REPORTED_ERRORS = 100;
+        private static final String[] REQUIRED = {"type", "brand", "model", "rate", "feature"};
+
+        // Counts of imported and rejected rows, with the reasons for the first few rejections
+        static class ImportResult {
+            private int imported;
+            private int rejected;
+            private final List<String> errors = new ArrayList<>();
+
+            private void reject(long lineNumber, String reason) {
+                if (rejected++ < MAX_REPORTED_ERRORS) errors.add("line " + lineNumber + ": " + reason);
+            }
+
+            public int getImported() { return imported; }
+            public int getRejected() { return rejected; }
+            public List<String> getErrors() { return errors; }
+        }
+
+        public static ImportResult importFrom(RentalSystem system, Reader input) throws IOException {
+            BufferedReader reader = new BufferedReader(input);
+            ImportResult result = new ImportResult();
+            String line = reader.readLine();
+            if (line == null) return result;
+            Map<String, Integer> columns = new HashMap<>();
+            List<String> header = parseLine(line);
+            for (int i = 0; i < header.size(); i++) {
+                columns.put(header.get(i).trim().toLowerCase(Locale.ROOT), i);
+            }
+            for (String name : REQUIRED) {
+                if (!columns.containsKey(name)) {
+                    result.reject(1, "header is missing the " + name + " column");
+                    return result;
+                }
+            }
+
+            List<Vehicle> batch = new ArrayList<>(BATCH_SIZE);
+            long lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) continue;
+                try {
+                    batch.add(parseVehicle(parseLine(line), columns));
+                } catch (IllegalArgumentException e) {
+                    result.reject(lineNumber, e.getMessage());
+                    continue;
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    system.addVehicles(batch);
+                    result.imported += batch.size();
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            system.addVehicles(batch);
+            result.imported += batch.size();
+            return result;
+        }
+
+        private static Vehicle parseVehicle(List<String> fields, Map<String, Integer> columns) {
+            String type = field(fields, columns, "type").toLowerCase(Locale.ROOT);
+            String brand = field(fields, columns, "brand");
+            String model = field(fields, columns, "model");
+            double rate;
+            try {
+                rate = Double.parseDouble(field(fields, columns, "rate"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("rate is not a number");
+            }
+            boolean feature = parseFlag(field(fields, columns, "feature"));
+            Vehicle vehicle;
+            if (type.equals("car")) vehicle = new Car(model, brand, rate, feature);
+            else if (type.equals("motorcycle")) vehicle = new Motorcycle(model, brand, rate, feature);
+            else throw new IllegalArgumentException("type must be car or motorcycle");
+            // Checked here too so one bad row is rejected on its own rather than failing its batch
+            RentalSystem.validate(vehicle);
+            return vehicle;
+        }
+
+        private static String field(List<String> fields, Map<String, Integer> columns, String name) {
+            int index = columns.get(name);
+            if (index >= fields.size()) throw new IllegalArgumentException("missing " + name);
+            return fields.get(index).trim();
+        }
+
+        private static boolean parseFlag(String value) {
+            switch (value.toLowerCase(Locale.ROOT)) {
+                case "y": case "yes": case "true": case "1":
+                    return true;
+                case "n": case "no": case "false": case "0": case "":
+                    return false;
+                default:
+                    throw new IllegalArgumentException("feature must be y or n");
+            }
+        }
+
+        // Splits one row on commas; fields may be double-quoted, with "" for a literal quote
+        private static List<String> parseLine(String line) {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            if (quoted) throw new IllegalArgumentException("unterminated quote");
+            fields.add(field.toString());
+            return fields;
+        }
+
+        // Writes every vehicle in ID order with its rental status; returns the number written
+        public static int exportTo(RentalSystem system, Writer output) throws IOException {
+            BufferedWriter writer = new BufferedWriter(output);
+            writer.write("id,type,brand,model,rate,feature,status,renter,days");
+            writer.newLine();
+            int count = 0;
+            for (Vehicle v : system.getAllVehicles()) {
+                Rental rental = system.getRental(v.getId());
+                writer.write(v.getId() + "," + (v.isMotorcycle() ? "motorcycle" : "car")
+                        + "," + escape(v.getBrand()) + "," + escape(v.getModel())
+                        + "," + v.getRentalRate() + "," + (v.hasAddOn() ? "y" : "n")
+                        + "," + (rental != null ? "rented," + escape(rental.getRenter().getUsername()) + "," + rental.getDays()
+                                : "available,,"));
+                writer.newLine();
+                count++;
+            }
+            writer.flush();
+            return count;
+        }
+
+        private static String escape(String text) {
+            if (text.indexOf(',') < 0 && text.indexOf('"') < 0) return text;
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+    }
+
+    // Outcome of one headless command: whether it succeeded, a one-line message and any result rows
+    static class CommandResult {
+        private final boolean ok;
+        private final String message;
+        private final List<String> rows;
+
+        private CommandResult(boolean ok, String message, List<String> rows) {
+            this.ok = ok;
+            this.message = message;
+            this.rows = rows;
+        }
+
+        public static CommandResult ok(String message) { return new CommandResult(true, message, Collections.emptyList()); }
+        public static CommandResult ok(String message, List<String> rows) { return new CommandResult(true, message, rows); }
+        public static CommandResult error(String message) { return new CommandResult(false, message, Collections.emptyList()); }
+        public static CommandResult error(String message, List<String> rows) { return new CommandResult(false, message, rows); }
+
+        public boolean isOk() { return ok; }
+        public String getMessage() { return message; }
+        public List<String> getRows() { return rows; }
+
+        // "OK message" or "ERROR message", followed by one indented line per row
+        public void writeTo(Appendable out) throws IOException {
+            out.append(ok ? "OK " : "ERROR ").append(message).append('\n');
+            for (String row : rows) {
+                out.append("  ").append(row).append('\n');
+            }
+        }
+    }
+
+    // Headless front end for RentalSystem with no prompting or screen clearing. Each processor
+    // holds one session, so a command stream behaves like one console user. Commands are
+    // whitespace-separated words, either through the typed methods or as text lines:
+    //   LOGIN user pass | LOGOUT | REGISTER user pass | LIST [afterId] [limit]
+    //   RENT id days | RETURN | ADD CAR|MOTORCYCLE brand model rate y|n | REMOVE id
+    //   SEARCH [brand=..] [model=..] [type=car|motorcycle] [ac=y|n] [helmet=y|n] [min=..] [max=..] [limit=..]
+    //          [days=..]   (with days, matches are priced and sorted by total cost)
+    //   QUOTE id days
+    //   RESERVE id start end | CANCEL reservationId | PICKUP reservationId | RESERVATIONS
+    //   FREE start end [afterId] [limit]      (dates as yyyy-mm-dd, end exclusive)
+    //   IMPORT file | EXPORT file             (admin; fleet CSV, see FleetCsv)
+    //   REVENUE from to | UTILIZATION from to [limit] | TOPRENTERS from to [limit]   (admin)
+    //   METRICS [file]                        (admin; with a file, the snapshot is written there)
+    static class CommandProcessor {
+        private static final int MAX_LIST = 1000;
+
+        // A search criterion with a value outside its allowed set; reported as its message
+        static class InvalidQueryException extends IllegalArgumentException {
+            private static final long serialVersionUID = 1L;
+
+            InvalidQueryException(String message) {
+                super(message);
+            }
+        }
+
+        private final RentalSystem system;
+        private Session session;
+
+        public CommandProcessor(RentalSystem system) {
+            this(system, null);
+        }
+
+        // For front ends that track sessions themselves, e.g. one processor per HTTP request
+        public CommandProcessor(RentalSystem system, Session session) {
+            this.system = system;
+            this.session = session;
+        }
+
+        public Session getSession() { return session; }
+
+        public CommandResult execute(String line) {
+            String[] args = line.trim().split("\\s+");
+            try {
+                switch (args[0].toUpperCase()) {
+                    case "LOGIN":
+                        return args.length == 3 ? login(args[1], args[2]) : usage("LOGIN user pass");
+                    case "LOGOUT":
+                        return logout();
+                    case "REGISTER":
+                        return args.length == 3 ? register(args[1], args[2]) : usage("REGISTER user pass");
+                    case "UNREGISTER":
+                        return args.length == 3 ? unregister(args[1], args[2]) : usage("UNREGISTER user pass");
+                    case "RENTALS":
+                        return rentals();
+                    case "LIST":
+                        return list(args.length > 1 ? Integer.parseInt(args[1]) : 0,
+                                args.length > 2 ? Integer.parseInt(args[2]) : PAGE_SIZE);
+                    case "RENT":
+                        return args.length == 3 ? rent(Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                                : usage("RENT id days");
+                    case "RETURN":
+                        return args.length > 1 ? returnVehicle(Integer.parseInt(args[1])) : returnVehicle();
+                    case "ADD":
+                        if (args.length != 6) return usage("ADD CAR|MOTORCYCLE brand model rate y|n");
+                        boolean feature = args[5].toLowerCase().startsWith("y");
+                        double rate = Double.parseDouble(args[4]);
+                        if (args[1].equalsIgnoreCase("CAR")) return add(new Car(args[3], args[2], rate, feature));
+                        if (args[1].equalsIgnoreCase("MOTORCYCLE")) return add(new Motorcycle(args[3], args[2], rate, feature));
+                        return usage("ADD CAR|MOTORCYCLE brand model rate y|n");
+                    case "REMOVE":
+                        return args.length == 2 ? remove(Integer.parseInt(args[1])) : usage("REMOVE id");
+                    case "SEARCH":
+                        Map<String, String> criteria = new HashMap<>();
+                        for (int i = 1; i < args.length; i++) {
+                            int eq = args[i].indexOf('=');
+                            if (eq < 0) return usage("SEARCH key=value ...");
+                            criteria.put(args[i].substring(0, eq).toLowerCase(), args[i].substring(eq + 1));
+                        }
+                        if (criteria.containsKey("days")) {
+                            return searchByPrice(parseQuery(criteria), Integer.parseInt(criteria.get("days")));
+                        }
+                        return search(parseQuery(criteria));
+                    case "QUOTE":
+                        return args.length == 3 ? quote(Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                                : usage("QUOTE id days");
+                    case "RESERVE":
+                        return args.length == 4
+                                ? reserve(Integer.parseInt(args[1]), LocalDate.parse(args[2]), LocalDate.parse(args[3]))
+                                : usage("RESERVE id start end");
+                    case "CANCEL":
+                        return args.length == 2 ? cancel(Long.parseLong(args[1])) : usage("CANCEL reservationId");
+                    case "PICKUP":
+                        return args.length == 2 ? pickUp(Long.parseLong(args[1])) : usage("PICKUP reservationId");
+                    case "RESERVATIONS":
+                        return reservations();
+                    case "IMPORT":
+                        return args.length == 2 ? importFleet(Paths.get(args[1])) : usage("IMPORT file");
+                    case "EXPORT":
+                        return args.length == 2 ? exportFleet(Paths.get(args[1])) : usage("EXPORT file");
+                    case "REVENUE":
+                        return args.length == 3 ? revenue(LocalDate.parse(args[1]), LocalDate.parse(args[2]))
+                                : usage("REVENUE from to");
+                    case "UTILIZATION":
+                        if (args.length < 3) return usage("UTILIZATION from to [limit]");
+                        return utilization(LocalDate.parse(args[1]), LocalDate.parse(args[2]),
+                                args.length > 3 ? Integer.parseInt(args[3]) : PAGE_SIZE);
+                    case "TOPRENTERS":
+                        if (args.length < 3) return usage("TOPRENTERS from to [limit]");
+                        return topRenters(LocalDate.parse(args[1]), LocalDate.parse(args[2]),
+                                args.length > 3 ? Integer.parseInt(args[3]) : PAGE_SIZE);
+                    case "METRICS":
+                        return metrics(args.length > 1 ? Paths.get(args[1]) : null);
+                    case "FREE":
+                        if (args.length < 3) return usage("FREE start end [afterId] [limit]");
+                        return free(LocalDate.parse(args[1]), LocalDate.parse(args[2]),
+                                args.length > 3 ? Integer.parseInt(args[3]) : 0,
+                                args.length > 4 ? Integer.parseInt(args[4]) : PAGE_SIZE);
+                    default:
+                        return CommandResult.error("Unknown command: " + args[0]);
+                }
+            } catch (NumberFormatException e) {
+                return CommandResult.error("Invalid number: " + e.getMessage());
+            } catch (InvalidQueryException e) {
+                return CommandResult.error(e.getMessage());
+            } catch (DateTimeParseException e) {
+                return CommandResult.error("Invalid date: " + e.getParsedString());
+            } catch (RuntimeException e) {
+                // Anything else fails only this command, so a batch run or shard connection carries on
+                return CommandResult.error("Command failed: " + e);
+            }
+        }
+
+        private static CommandResult usage(String usage) {
+            return CommandResult.error("Usage: " + usage);
+        }
+
+        public CommandResult login(String username, String password) {
+            LoginResult result = system.tryLogin(username, password, null);
+            if (result.getSession() == null) return CommandResult.error(result.getMessage());
+            session = result.getSession();
+            return CommandResult.ok(result.getMessage());
+        }
+
+        public CommandResult logout() {
+            session = null;
+            return CommandResult.ok("Logged out");
+        }
+
+        public CommandResult register(String username, String password) {
+            Registration registration = system.tryRegister(username, password);
+            return registration == Registration.OK
+                    ? CommandResult.ok("Registered " + username)
+                    : CommandResult.error(registration.getMessage());
+        }
+
+        public CommandResult unregister(String username, String password) {
+            return system.unregisterUser(username, password)
+                    ? CommandResult.ok("Unregistered " + username)
+                    : CommandResult.error("Cannot unregister " + username);
+        }
+
+        // The session user's open rentals, priced for their full length
+        public CommandResult rentals() {
+            if (session == null) return CommandResult.error("Not logged in");
+            List<String> rows = new ArrayList<>();
+            for (Rental rental : system.getUserRentals(session)) {
+                Vehicle v = rental.getVehicle();
+                rows.add(vehicleRow(v, system.quote(v, rental.getDays()).getTotal()));
+            }
+            return CommandResult.ok(rows.size() + " active rentals", rows);
+        }
+
+        // Vehicle rows start with two fixed columns, "id $price", before the description, so a
+        // router can merge them without parsing the description. The price is the daily rate, or
+        // the total when the rows were priced for a number of days.
+        static String vehicleRow(Vehicle v, double price) {
+            return v.getId() + " $" + price + " " + v;
+        }
+
+        // The price column of a vehicle row, or NaN if the row is not one
+        static double rowPrice(String row) {
+            String[] columns = row.split(" ", 3);
+            if (columns.length < 3 || !columns[1].startsWith("$")) return Double.NaN;
+            try {
+                return Double.parseDouble(columns[1].substring(1));
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        public CommandResult list(int afterId, int limit) {
+            limit = Math.max(1, Math.min(limit, MAX_LIST));
+            List<String> rows = new ArrayList<>(Math.min(limit, system.getAvailableCount()));
+            for (Vehicle v : system.getAvailableVehicles(afterId)) {
+                if (rows.size() == limit) break;
+                rows.add(vehicleRow(v, v.getRentalRate()));
+            }
+            return CommandResult.ok(rows.size() + " of " + system.getAvailableCount() + " available", rows);
+        }
+
+        // Builds a catalog query from SEARCH keys; the HTTP API passes its parameters here too
+        public static VehicleQuery parseQuery(Map<String, String> criteria) {
+            VehicleQuery query = new VehicleQuery().limit(PAGE_SIZE);
+            for (Map.Entry<String, String> entry : criteria.entrySet()) {
+                String value = entry.getValue();
+                switch (entry.getKey()) {
+                    case "brand": query.brand(value); break;
+                    case "model": query.model(value); break;
+                    case "type":
+                        if (value.equalsIgnoreCase("car")) query.motorcycle(false);
+                        else if (value.equalsIgnoreCase("motorcycle")) query.motorcycle(true);
+                        else throw new InvalidQueryException("Invalid type: " + value + " (use car or motorcycle)");
+                        break;
+                    case "ac": query.hasAC(value.toLowerCase().startsWith("y")); break;
+                    case "helmet": query.hasHelmet(value.toLowerCase().startsWith("y")); break;
+                    case "min": query.minRate(Double.parseDouble(value)); break;
+                    case "max": query.maxRate(Double.parseDouble(value)); break;
+                    case "limit": query.limit(Math.max(1, Math.min(Integer.parseInt(value), MAX_LIST))); break;
+                    default: break;
+                }
+            }
+            return query;
+        }
+
+        public CommandResult search(VehicleQuery query) {
+            List<String> rows = new ArrayList<>();
+            for (Vehicle v : system.searchVehicles(query)) {
+                rows.add(vehicleRow(v, v.getRentalRate()));
+            }
+            return CommandResult.ok(rows.size() + " matching", rows);
+        }
+
+        public CommandResult searchByPrice(VehicleQuery query, int days) {
+            if (days < 1 || days > 30) return CommandResult.error("Days must be between 1 and 30");
+            List<String> rows = new ArrayList<>();
+            for (PricedVehicle priced : system.searchVehiclesByPrice(query, days)) {
+                Vehicle v = priced.getVehicle();
+                rows.add(vehicleRow(v, priced.getQuote().getTotal()));
+            }
+            return CommandResult.ok(rows.size() + " matching for " + days + " days", rows);
+        }
+
+        public CommandResult quote(int vehicleId, int days) {
+            Vehicle vehicle = system.getVehicle(vehicleId);
+            if (vehicle == null) return CommandResult.error("No vehicle " + vehicleId);
+            if (days < 1 || days > 30) return CommandResult.error("Days must be between 1 and 30");
+            Quote quote = system.quote(vehicle, days);
+            List<String> rows = new ArrayList<>();
+            for (Quote.Line line : quote.getLines()) {
+                rows.add(line.getLabel() + ": $" + line.getAmount());
+            }
+            return CommandResult.ok("Total cost: $" + quote.getTotal(), rows);
+        }
+
+        public CommandResult rent(int vehicleId, int days) {
+            if (session == null) return CommandResult.error("Not logged in");
+            if (days < 1 || days > 30) return CommandResult.error("Days must be between 1 and 30");
+            if (!FleetStore.fits(session.getUser().getUsername())) {
+                return CommandResult.error("Usernames over " + FleetStore.MAX_TEXT_BYTES + " bytes cannot rent");
+            }
+            if (!system.canRentVehicle(session)) return CommandResult.error("Rental limit reached");
+            if (!system.rentVehicle(session, vehicleId, days)) {
+                return CommandResult.error("Vehicle " + vehicleId + " is not available for " + days + " days");
+            }
+            Vehicle vehicle = system.getVehicle(vehicleId);
+            return CommandResult.ok("Rented " + vehicle + " for " + days + " days, total $"
+                    + system.quote(vehicle, days).getTotal());
+        }
+
+        public CommandResult returnVehicle() {
+            if (session == null) return CommandResult.error("Not logged in");
+            Rental rental = system.returnVehicle(session);
+            return rental == null ? CommandResult.error("No active rental")
+                    : CommandResult.ok("Returned " + rental.getVehicle());
+        }
+
+        public CommandResult returnVehicle(int vehicleId) {
+            if (session == null) return CommandResult.error("Not logged in");
+            Rental rental = system.returnVehicle(session, vehicleId);
+            return rental == null ? CommandResult.error("Not renting vehicle " + vehicleId)
+                    : CommandResult.ok("Returned " + rental.getVehicle());
+        }
+
+        public CommandResult reserve(int vehicleId, LocalDate start, LocalDate end) {
+            if (session == null) return CommandResult.error("Not logged in");
+            Reservation reservation = system.reserveVehicle(session, vehicleId, start, end);
+            return reservation == null ? CommandResult.error("Vehicle " + vehicleId + " cannot be reserved for those dates")
+                    : CommandResult.ok("Reserved " + reservation);
+        }
+
+        public CommandResult cancel(long reservationId) {
+            if (session == null) return CommandResult.error("Not logged in");
+            return system.cancelReservation(session, reservationId)
+                    ? CommandResult.ok("Cancelled reservation #" + reservationId)
+                    : CommandResult.error("No reservation #" + reservationId);
+        }
+
+        public CommandResult pickUp(long reservationId) {
+            if (session == null) return CommandResult.error("Not logged in");
+            Rental rental = system.pickUpReservation(session, reservationId);
+            return rental == null ? CommandResult.error("Reservation #" + reservationId + " cannot be picked up now")
+                    : CommandResult.ok("Rented " + rental.getVehicle() + " for " + rental.getDays() + " days");
+        }
+
+        public CommandResult reservations() {
+            if (session == null) return CommandResult.error("Not logged in");
+            List<String> rows = new ArrayList<>();
+            for (Reservation reservation : system.getUserReservations(session)) {
+                rows.add(reservation.toString());
+            }
+            return CommandResult.ok(rows.size() + " reservations", rows);
+        }
+
+        public CommandResult free(LocalDate start, LocalDate end, int afterId, int limit) {
+            if (!start.isBefore(end)) return CommandResult.error("End date must be after start date");
+            List<String> rows = new ArrayList<>();
+            for (Vehicle v : system.getVehiclesFreeBetween(start, end, afterId, Math.max(1, Math.min(limit, MAX_LIST)))) {
+                rows.add(vehicleRow(v, v.getRentalRate()));
+            }
+            return CommandResult.ok(rows.size() + " free from " + start + " to " + end, rows);
+        }
+
+        public CommandResult add(Vehicle vehicle) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            try {
+                system.addVehicle(vehicle);
+            } catch (IllegalArgumentException e) {
+                return CommandResult.error(e.getMessage());
+            }
+            return CommandResult.ok("Added vehicle " + vehicle.getId());
+        }
+
+        public CommandResult remove(int vehicleId) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            return system.removeVehicle(vehicleId)
+                    ? CommandResult.ok("Removed vehicle " + vehicleId)
+                    : CommandResult.error("Vehicle " + vehicleId + " is rented, reserved or missing");
+        }
+
+        public CommandResult importFleet(Path file) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            FleetCsv.ImportResult result;
+            try (Reader input = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                result = FleetCsv.importFrom(system, input);
+            } catch (IOException e) {
+                return CommandResult.error("Could not read " + file);
+            }
+            return CommandResult.ok("Imported " + result.getImported() + " vehicles, rejected "
+                    + result.getRejected(), result.getErrors());
+        }
+
+        public CommandResult exportFleet(Path file) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            try (Writer output = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                return CommandResult.ok("Exported " + FleetCsv.exportTo(system, output) + " vehicles to " + file);
+            } catch (IOException e) {
+                return CommandResult.error("Could not write " + file);
+            }
+        }
+
+        public CommandResult revenue(LocalDate from, LocalDate to) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            List<String> rows = new ArrayList<>();
+            double total = 0;
+            for (Map.Entry<LocalDate, Double> day : system.getRevenuePerDay(from, to).entrySet()) {
+                rows.add(day.getKey() + " $" + day.getValue());
+                total += day.getValue();
+            }
+            return CommandResult.ok("Revenue from " + from + " to " + to + ": $" + total, rows);
+        }
+
+        // The most utilized vehicles first
+        public CommandResult utilization(LocalDate from, LocalDate to, int limit) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(system.getUtilizationPerVehicle(from, to).entrySet());
+            ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed());
+            List<String> rows = new ArrayList<>();
+            for (Map.Entry<Integer, Double> entry : ranked.subList(0, Math.min(ranked.size(), Math.max(1, limit)))) {
+                Vehicle vehicle = system.getVehicle(entry.getKey());
+                rows.add(String.format("%d %s %.1f%%", entry.getKey(),
+                        vehicle != null ? vehicle : "(removed)", entry.getValue() * 100));
+            }
+            return CommandResult.ok(ranked.size() + " vehicles rented from " + from + " to " + to, rows);
+        }
+
+        public CommandResult topRenters(LocalDate from, LocalDate to, int limit) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            List<String> rows = new ArrayList<>();
+            for (RentalLedger.RenterTotal total : system.getTopRenters(from, to, Math.max(1, limit))) {
+                rows.add(total.getUsername() + " " + total.getRentals() + " rentals $" + total.getRevenue());
+            }
+            return CommandResult.ok("Top renters from " + from + " to " + to, rows);
+        }
+
+        public CommandResult metrics(Path file) {
+            if (!system.isAdmin(session)) return CommandResult.error("Admin only");
+            if (file == null) return CommandResult.ok("Metrics", system.getMetrics().snapshot());
+            try {
+                system.getMetrics().dumpTo(file);
+            } catch (IOException e) {
+                return CommandResult.error("Could not write " + file);
+            }
+            return CommandResult.ok("Metrics written to " + file);
+        }
+
+        // Executes one command per line, skipping blank lines and # comments. Output is flushed
+        // only when no more input is immediately ready, so replayed files run at full speed.
+        public static void runBatch(RentalSystem system, Reader input, Writer output) throws IOException {
+            CommandProcessor processor = new CommandProcessor(system);
+            BufferedReader reader = new BufferedReader(input);
+            BufferedWriter writer = new BufferedWriter(output);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                processor.execute(line).writeTo(writer);
+                if (!reader.ready()) writer.flush();
+            }
+            writer.flush();
+        }
+    }
+
+    // JSON over HTTP front end on the JDK's built-in server, started with "java Main --http [port]".
+    // Each request runs on its own virtual thread when the JDK has them (21+), otherwise on a
+    // bounded platform thread pool. Login hands out a bearer token from the system's session cache,
+    // so no state is shared between requests; logins are throttled per username and client address.
+    // Parameters come from the query string or a form body.
+    //   POST /login, /register        username, password -> token
+    //   POST /logout                  (token)
+    //   GET  /vehicles                after, limit -> available vehicles, streamed
+    //   GET  /vehicles/search         brand, model, type, ac, helmet, min, max, limit -> cheapest first
+    //   POST /rent                    vehicleId, days (token)
+    //   POST /return                  (token)
+    //   POST /admin/add               type=car|motorcycle, brand, model, rate, feature=y|n (admin token)
+    //   POST /admin/remove            vehicleId (admin token)
+    static class HttpApi {
+        private static final int DEFAULT_LIMIT = 100;
+
+        interface Handler {
+            void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+        }
+
+        // A required request parameter was absent or empty; answered with 400
+        static class MissingParameterException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            MissingParameterException(String name) {
+                super("Missing parameter: " + name);
+            }
+        }
+
+        private final RentalSystem system;
+        private final HttpServer server;
+        private final ExecutorService executor;
+
+        public HttpApi(RentalSystem system, int port) throws IOException {
+            this.system = system;
+            this.server = HttpServer.create(new InetSocketAddress(port), 0);
+            this.executor = newRequestExecutor();
+            server.setExecutor(executor);
+            route("/login", "POST", this::login);
+            route("/register", "POST", this::register);
+            route("/logout", "POST", this::logout);
+            route("/vehicles", "GET", this::vehicles);
+            route("/vehicles/search", "GET", this::search);
+            route("/rent", "POST", (exchange, params) -> withSession(exchange, false, processor ->
+                    processor.rent(Integer.parseInt(required(params, "vehicleId")), Integer.parseInt(required(params, "days")))));
+            route("/return", "POST", (exchange, params) -> withSession(exchange, false, CommandProcessor::returnVehicle));
+            route("/admin/add", "POST", (exchange, params) -> withSession(exchange, true, processor -> {
+                String type = params.getOrDefault("type", "");
+                double rate = Double.parseDouble(required(params, "rate"));
+                boolean feature = params.getOrDefault("feature", "n").toLowerCase().startsWith("y");
+                String brand = params.getOrDefault("brand", "");
+                String model = params.getOrDefault("model", "");
+                if (type.equalsIgnoreCase("car")) return processor.add(new Car(model, brand, rate, feature));
+                if (type.equalsIgnoreCase("motorcycle")) return processor.add(new Motorcycle(model, brand, rate, feature));
+                return CommandResult.error("type must be car or motorcycle");
+            }));
+            route("/admin/remove", "POST", (exchange, params) -> withSession(exchange, true, processor ->
+                    processor.remove(Integer.parseInt(required(params, "vehicleId")))));
+        }
+
+        private static ExecutorService newRequestExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newFixedThreadPool(Math.max(64, Runtime.getRuntime().availableProcessors() * 32));
+            }
+        }
+
+        public void start() { server.start(); }
+
+        public void stop() {
+            server.stop(1);
+            executor.shutdown();
+        }
+
+        private void route(String path, String method, Handler handler) {
+            server.createContext(path, exchange -> {
+                try {
+                    if (!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                        sendJson(exchange, 405, result(false, "Use " + method));
+                        return;
+                    }
+                    handler.handle(exchange, params(exchange));
+                } catch (MissingParameterException | CommandProcessor.InvalidQueryException e) {
+                    sendJson(exchange, 400, result(false, e.getMessage()));
+                } catch (NumberFormatException e) {
+                    sendJson(exchange, 400, result(false, "Invalid parameter: " + e.getMessage()));
+                } finally {
+                    exchange.close();
+                }
+            });
+        }
+
+        private void login(HttpExchange exchange, Map<String, String> params) throws IOException {
+            String username = params.getOrDefault("username", "");
+            String source = exchange.getRemoteAddress().getAddress().getHostAddress();
+            LoginResult login = system.tryLogin(username, params.getOrDefault("password", ""), source);
+            switch (login.getStatus()) {
+                case THROTTLED:
+                    sendJson(exchange, 429, result(false, login.getMessage()));
+                    return;
+                case BUSY:
+                    sendJson(exchange, 503, result(false, login.getMessage()));
+                    return;
+                case INVALID_CREDENTIALS:
+                    sendJson(exchange, 401, result(false, login.getMessage()));
+                    return;
+                default:
+                    break;
+            }
+            String token = system.openSession(login.getSession());
+            sendJson(exchange, 200, "{\"ok\":true,\"token\":" + quote(token) + "}");
+        }
+
+        private void register(HttpExchange exchange, Map<String, String> params) throws IOException {
+            String username = params.getOrDefault("username", "");
+            Registration registration = system.tryRegister(username, params.getOrDefault("password", ""));
+            switch (registration) {
+                case OK:
+                    sendJson(exchange, 200, result(true, "Registered " + username));
+                    return;
+                case INVALID_USERNAME:
+                    sendJson(exchange, 400, result(false, registration.getMessage()));
+                    return;
+                case BUSY:
+                    sendJson(exchange, 503, result(false, registration.getMessage()));
+                    return;
+                default:
+                    sendJson(exchange, 409, result(false, registration.getMessage()));
+            }
+        }
+
+        private void logout(HttpExchange exchange, Map<String, String> params) throws IOException {
+            String token = token(exchange);
+            if (token != null) system.closeSession(token);
+            sendJson(exchange, 200, result(true, "Logged out"));
+        }
+
+        // Streams the page straight from the availability index, one vehicle at a time
+        private void vehicles(HttpExchange exchange, Map<String, String> params) throws IOException {
+            int after = Integer.parseInt(params.getOrDefault("after", "0"));
+            int limit = Math.max(1, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT))));
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                out.write("{\"available\":" + system.getAvailableCount() + ",\"vehicles\":[");
+                int written = 0;
+                int lastId = after;
+                for (Vehicle v : system.getAvailableVehicles(after)) {
+                    if (written == limit) break;
+                    if (written++ > 0) out.write(',');
+                    writeVehicle(out, v);
+                    lastId = v.getId();
+                }
+                out.write("],\"next\":" + (written == limit ? String.valueOf(lastId) : "null") + "}");
+            }
+        }
+
+        private void search(HttpExchange exchange, Map<String, String> params) throws IOException {
+            List<Vehicle> matches = system.searchVehicles(CommandProcessor.parseQuery(params));
+            StringWriter out = new StringWriter();
+            out.write("{\"count\":" + matches.size() + ",\"vehicles\":[");
+            for (int i = 0; i < matches.size(); i++) {
+                if (i > 0) out.write(',');
+                writeVehicle(out, matches.get(i));
+            }
+            out.write("]}");
+            sendJson(exchange, 200, out.toString());
+        }
+
+        private static void writeVehicle(Writer out, Vehicle v) throws IOException {
+            out.write("{\"id\":" + v.getId()
+                    + ",\"type\":" + quote(v.isMotorcycle() ? "motorcycle" : "car")
+                    + ",\"brand\":" + quote(v.getBrand())
+                    + ",\"model\":" + quote(v.getModel())
+                    + ",\"rate\":" + v.getRentalRate()
+                    + (v.isMotorcycle() ? ",\"helmet\":" : ",\"ac\":") + v.hasAddOn()
+                    + "}");
+        }
+
+        // Runs a command for the session behind the request's bearer token
+        private void withSession(HttpExchange exchange, boolean adminOnly,
+                                 Function<CommandProcessor, CommandResult> command) throws IOException {
+            String token = token(exchange);
+            Session session = token == null ? null : system.getSession(token);
+            if (session == null) {
+                sendJson(exchange, 401, result(false, "Not logged in"));
+                return;
+            }
+            if (adminOnly && !system.isAdmin(session)) {
+                sendJson(exchange, 403, result(false, "Admin only"));
+                return;
+            }
+            CommandResult result = command.apply(new CommandProcessor(system, session));
+            sendJson(exchange, result.isOk() ? 200 : 409, result(result.isOk(), result.getMessage()));
+        }
+
+        private static String token(HttpExchange exchange) {
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            return header != null && header.startsWith("Bearer ") ? header.substring(7).trim() : null;
+        }
+
+        private static String required(Map<String, String> params, String name) {
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) throw new MissingParameterException(name);
+            return value;
+        }
+
+        private static Map<String, String> params(HttpExchange exchange) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            parseForm(exchange.getRequestURI().getRawQuery(), params);
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+                parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+            }
+            return params;
+        }
+
+        private static void parseForm(String form, Map<String, String> params) {
+            if (form == null || form.isEmpty()) return;
+            for (String pair : form.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                String value = eq < 0 ? "" : pair.substring(eq + 1);
+                params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+
+        private static String result(boolean ok, String message) {
+            return "{\"ok\":" + ok + ",\"message\":" + quote(message) + "}";
+        }
+
+        private static String quote(String text) {
+            StringBuilder sb = new StringBuilder(text.length() + 2).append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.append('"').toString();
+        }
 
-        public Vehicle(String model, String brand, double rentalRate) {
-            this.model = model;
-            this.brand = brand;
-            this.rentalRate = rentalRate;
-            this.isAvailable = true;
-            this.renter = null;
+        private static void sendJson(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
         }
+    }
 
-        public abstract double calculateRentalCost(int days);
+    // One client's command channel to a shard, either in-process or over a socket to a shard
+    // process. Commands on one connection run in order and share one login, like a console user.
+    interface ShardConnection extends Closeable {
+        CommandResult execute(String command) throws IOException;
 
-        public String getModel() { return model; }
-        public String getBrand() { return brand; }
-        public double getRentalRate() { return rentalRate; }
-        public boolean isAvailable() { return isAvailable; }
-        public void setAvailable(boolean available) { isAvailable = available; }
-        public User getRenter() { return renter; }
-        public void setRenter(User renter) { this.renter = renter; }
+        default void close() throws IOException { }
+    }
 
-        @Override
-        public String toString() {
-            return brand + " " + model + " (Rate: $" + rentalRate + "/day)";
+    static class LocalShardConnection implements ShardConnection {
+        private final CommandProcessor processor;
+
+        LocalShardConnection(RentalSystem system) {
+            this.processor = new CommandProcessor(system);
+        }
+
+        public CommandResult execute(String command) {
+            return processor.execute(command);
         }
     }
 
-    // Car implementation with AC feature
-    static class Car extends Vehicle {
-        private boolean hasAC;
+    // The shard line protocol: the client sends one command line, and the shard answers with the
+    // CommandResult as written by writeTo, followed by an empty line
+    static class RemoteShardConnection implements ShardConnection {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
 
-        public Car(String model, String brand, double rentalRate, boolean hasAC) {
-            super(model, brand, rentalRate);
-            this.hasAC = hasAC;
+        RemoteShardConnection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        public synchronized CommandResult execute(String command) throws IOException {
+            out.write(command);
+            out.write('\n');
+            out.flush();
+            String status = in.readLine();
+            if (status == null) throw new EOFException("Shard closed the connection");
+            List<String> rows = new ArrayList<>();
+            for (String line; (line = in.readLine()) != null && !line.isEmpty(); ) {
+                rows.add(line.substring(Math.min(2, line.length())));
+            }
+            if (status.startsWith("OK ")) return CommandResult.ok(status.substring(3), rows);
+            return CommandResult.error(status.startsWith("ERROR ") ? status.substring(6) : status);
         }
 
         @Override
-        public double calculateRentalCost(int days) {
-            double cost = getRentalRate() * days;
-            if (hasAC) cost += 5 * days;
-            return cost;
+        public void close() throws IOException {
+            socket.close();
         }
     }
 
-    // Motorcycle implementation with optional helmet rental
-    static class Motorcycle extends Vehicle {
-        private boolean hasHelmet;
+    // Serves one RentalSystem to routers over TCP, started with "java Main --shard port [dataDir]".
+    // Every connection gets its own CommandProcessor and thread.
+    static class ShardServer implements Closeable {
+        private final RentalSystem system;
+        private final ServerSocket serverSocket;
+        private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-connection");
+            t.setDaemon(true);
+            return t;
+        });
 
-        public Motorcycle(String model, String brand, double rentalRate, boolean hasHelmet) {
-            super(model, brand, rentalRate);
-            this.hasHelmet = hasHelmet;
+        public ShardServer(RentalSystem system, int port) throws IOException {
+            this.system = system;
+            this.serverSocket = new ServerSocket(port);
         }
 
-        @Override
-        public double calculateRentalCost(int days) {
-            return getRentalRate() * days;
+        public void start() {
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connections.execute(() -> serve(socket));
+                    } catch (IOException e) {
+                        // closed while waiting for a connection
+                    }
+                }
+            }, "shard-acceptor");
+            acceptor.start();
         }
 
-        public double getHelmetCost(int days) {
-            return hasHelmet ? 2 * days : 0;
+        private void serve(Socket socket) {
+            try (Socket s = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                 Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+                s.setTcpNoDelay(true);
+                CommandProcessor processor = new CommandProcessor(system);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    processor.execute(line).writeTo(out);
+                    out.write('\n');
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the router went away; its session ends with the connection
+            }
         }
 
-        public boolean hasHelmet() {
-            return hasHelmet;
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            connections.shutdownNow();
         }
     }
 
-    // User class managing authentication and rental status
-    static class User {
-        private String username;
-        String password;
-        private boolean hasActiveRental;
+    // Splits the fleet into branches, each an independent shard with its own RentalSystem and data
+    // files, either in this process (under dataDir/branch) or in a shard process reached over TCP.
+    // Vehicles are addressed by branch and per-branch ID. Accounts are replicated: REGISTER, LOGIN
+    // and LOGOUT go to every shard so a user can rent at any branch, and a registration that fails
+    // on any branch is undone on the others. RENT and RETURN go to one shard; the router counts a
+    // user's rentals on every branch first so rental.maxActiveRentals holds across the whole fleet.
+    // SEARCH and LIST fan out to every shard in parallel on a ForkJoinPool and the results are merged.
+    // Started with "java Main --router branch=local|host:port ..." reading commands from stdin:
+    //   LOGIN user pass | LOGOUT | REGISTER user pass | BRANCHES
+    //   SEARCH key=value ...         (as for CommandProcessor; merged cheapest first)
+    //   LIST [limit]                 (the first vehicles of every branch)
+    //   RENT branch id days | RETURN [branch id]  (RETURN alone returns the first rental found)
+    //   @branch command              (any CommandProcessor command, sent to one branch)
+    static class ShardRouter implements Closeable {
+        interface ConnectionFactory {
+            ShardConnection open() throws IOException;
+        }
 
-        public User(String username, String password) {
-            this.username = username;
-            this.password = password;
-            this.hasActiveRental = false;
+        private final Map<String, ConnectionFactory> shards = new LinkedHashMap<>();
+        private final List<RentalSystem> localSystems = new ArrayList<>();
+        private final ForkJoinPool pool;
+        // Rentals a user may hold across all branches; a user's rents are serialized on their lock
+        private final int maxActiveRentals = Integer.getInteger("rental.maxActiveRentals", 1);
+        private final Map<String, Object> renterLocks = new ConcurrentHashMap<>();
+
+        // Each spec is "branch=local" or "branch=host:port"
+        public ShardRouter(List<String> specs, Path dataDir) {
+            for (String spec : specs) {
+                int eq = spec.indexOf('=');
+                if (eq <= 0) throw new IllegalArgumentException("Expected branch=local or branch=host:port: " + spec);
+                String branch = spec.substring(0, eq);
+                String target = spec.substring(eq + 1);
+                if (target.equals("local")) {
+                    try {
+                        Files.createDirectories(dataDir.resolve(branch));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    RentalSystem system = new RentalSystem(dataDir.resolve(branch));
+                    localSystems.add(system);
+                    shards.put(branch, () -> new LocalShardConnection(system));
+                } else {
+                    int colon = target.lastIndexOf(':');
+                    String host = target.substring(0, colon);
+                    int port = Integer.parseInt(target.substring(colon + 1));
+                    shards.put(branch, () -> new RemoteShardConnection(host, port));
+                }
+            }
+            pool = new ForkJoinPool(Math.max(1, shards.size()));
         }
 
-        public boolean hasActiveRental() { return hasActiveRental; }
-        public void setActiveRental(boolean hasRental) { this.hasActiveRental = hasRental; }
-        
-        public boolean authenticate(String password) {
-            return this.password.equals(password);
+        public Set<String> getBranches() { return Collections.unmodifiableSet(shards.keySet()); }
+
+        // A new client with its own connection, and so its own login, on every shard
+        public Client connect() {
+            return new Client();
         }
 
-        public String getUsername() { return username; }
+        @Override
+        public void close() {
+            pool.shutdown();
+            for (RentalSystem system : localSystems) system.close();
+        }
+
+        public class Client implements Closeable {
+            private final Map<String, ShardConnection> connections = new LinkedHashMap<>();
+            // Set once a LOGIN succeeds on any branch
+            private String username;
+
+            private Client() {
+                for (Map.Entry<String, ConnectionFactory> shard : shards.entrySet()) {
+                    ShardConnection connection;
+                    try {
+                        connection = shard.getValue().open();
+                    } catch (IOException e) {
+                        String reason = "Branch " + shard.getKey() + " is unreachable: " + e.getMessage();
+                        connection = command -> CommandResult.error(reason);
+                    }
+                    connections.put(shard.getKey(), connection);
+                }
+            }
+
+            public CommandResult execute(String line) {
+                String[] args = line.trim().split("\\s+");
+                String command = args[0].toUpperCase();
+                try {
+                    if (command.startsWith("@")) {
+                        String rest = line.trim().substring(args[0].length()).trim();
+                        if (rest.toUpperCase().startsWith("RENT ")) return rent(args[0].substring(1), rest);
+                        return send(args[0].substring(1), rest);
+                    }
+                    switch (command) {
+                        case "LOGIN":
+                            return login(line.trim(), args);
+                        case "LOGOUT":
+                            username = null;
+                            return everywhere(line.trim());
+                        case "REGISTER":
+                            return register(line.trim(), args);
+                        case "BRANCHES":
+                            return CommandResult.ok(shards.size() + " branches", new ArrayList<>(shards.keySet()));
+                        case "SEARCH":
+                            return search(line.trim());
+                        case "LIST":
+                            int limit = args.length > 1 ? Integer.parseInt(args[1]) : PAGE_SIZE;
+                            return merge(broadcast("LIST 0 " + limit), "available", Integer.MAX_VALUE, false);
+                        case "RENT":
+                            return args.length == 4 ? rent(args[1], "RENT " + args[2] + " " + args[3])
+                                    : CommandResult.error("Usage: RENT branch id days");
+                        case "RETURN":
+                            if (args.length == 3) return send(args[1], "RETURN " + args[2]);
+                            return returnFirst();
+                        default:
+                            return CommandResult.error("Unknown command: " + args[0] + " (use @branch to send it to one branch)");
+                    }
+                } catch (NumberFormatException e) {
+                    return CommandResult.error("Invalid number: " + e.getMessage());
+                }
+            }
+
+            private CommandResult send(String branch, String command) {
+                ShardConnection connection = connections.get(branch);
+                if (connection == null) return CommandResult.error("No branch " + branch);
+                try {
+                    return connection.execute(command);
+                } catch (IOException e) {
+                    return CommandResult.error("Branch " + branch + " failed: " + e.getMessage());
+                }
+            }
+
+            // Runs the command on every shard at once; results are in branch order
+            private Map<String, CommandResult> broadcast(String command) {
+                Map<String, ForkJoinTask<CommandResult>> tasks = new LinkedHashMap<>();
+                for (String branch : connections.keySet()) {
+                    tasks.put(branch, pool.submit(() -> send(branch, command)));
+                }
+                Map<String, CommandResult> results = new LinkedHashMap<>();
+                tasks.forEach((branch, task) -> results.put(branch, task.join()));
+                return results;
+            }
+
+            // Succeeds only if every shard does; failing branches are listed as rows
+            private CommandResult everywhere(String command) {
+                return everywhere(broadcast(command));
+            }
+
+            private CommandResult everywhere(Map<String, CommandResult> results) {
+                List<String> failures = new ArrayList<>();
+                results.forEach((branch, result) -> {
+                    if (!result.isOk()) failures.add(branch + ": " + result.getMessage());
+                });
+                CommandResult first = results.values().iterator().next();
+                if (failures.isEmpty()) return CommandResult.ok(first.getMessage());
+                return CommandResult.error(failures.size() + " of " + results.size() + " branches failed", failures);
+            }
+
+            private CommandResult login(String command, String[] args) {
+                Map<String, CommandResult> results = broadcast(command);
+                for (CommandResult result : results.values()) {
+                    if (result.isOk() && args.length == 3) username = args[1];
+                }
+                return everywhere(results);
+            }
+
+            // Registers on every branch; if any branch refuses, the account is removed again from
+            // the branches that took it, so a retry starts from a clean slate
+            private CommandResult register(String command, String[] args) {
+                Map<String, CommandResult> results = broadcast(command);
+                CommandResult result = everywhere(results);
+                if (!result.isOk() && args.length == 3) {
+                    results.forEach((branch, branchResult) -> {
+                        if (branchResult.isOk()) send(branch, "UNREGISTER " + args[1] + " " + args[2]);
+                    });
+                }
+                return result;
+            }
+
+            // Checks the user's rentals on every branch against the fleet-wide limit, then rents
+            private CommandResult rent(String branch, String command) {
+                if (username == null) return send(branch, command);
+                synchronized (renterLocks.computeIfAbsent(username, u -> new Object())) {
+                    int held = 0;
+                    for (CommandResult result : broadcast("RENTALS").values()) {
+                        if (result.isOk()) held += result.getRows().size();
+                    }
+                    if (held >= maxActiveRentals) return CommandResult.error("Rental limit reached");
+                    return send(branch, command);
+                }
+            }
+
+            // Returns only the user's first rental, in branch order
+            private CommandResult returnFirst() {
+                for (Map.Entry<String, CommandResult> rentals : broadcast("RENTALS").entrySet()) {
+                    CommandResult result = rentals.getValue();
+                    if (!result.isOk() || result.getRows().isEmpty()) continue;
+                    String id = result.getRows().get(0).split(" ", 2)[0];
+                    CommandResult returned = send(rentals.getKey(), "RETURN " + id);
+                    return returned.isOk() ? CommandResult.ok(rentals.getKey() + ": " + returned.getMessage()) : returned;
+                }
+                return CommandResult.error("No active rental");
+            }
+
+            // Each shard returns its own cheapest matches; the merged list keeps the cheapest overall
+            private CommandResult search(String command) {
+                int limit = PAGE_SIZE;
+                for (String arg : command.split("\\s+")) {
+                    if (arg.toLowerCase().startsWith("limit=")) limit = Integer.parseInt(arg.substring(6));
+                }
+                return merge(broadcast(command), "matching", limit, true);
+            }
+
+            // Prefixes every row with its branch, optionally sorting by price, and keeps up to limit rows
+            private CommandResult merge(Map<String, CommandResult> results, String noun, int limit, boolean byPrice) {
+                List<String[]> rows = new ArrayList<>();
+                List<String> failures = new ArrayList<>();
+                results.forEach((branch, result) -> {
+                    if (!result.isOk()) failures.add(branch + ": " + result.getMessage());
+                    for (String row : result.getRows()) rows.add(new String[]{branch, row});
+                });
+                if (!failures.isEmpty() && rows.isEmpty()) {
+                    return CommandResult.error(failures.size() + " of " + results.size() + " branches failed", failures);
+                }
+                if (byPrice) rows.sort(Comparator.comparingDouble(row -> price(row[1])));
+                List<String> merged = new ArrayList<>();
+                for (String[] row : rows.subList(0, Math.min(rows.size(), Math.max(1, limit)))) {
+                    merged.add(row[0] + " " + row[1]);
+                }
+                merged.addAll(failures);
+                return CommandResult.ok(merged.size() - failures.size() + " " + noun + " across "
+                        + (results.size() - failures.size()) + " branches", merged);
+            }
+
+            // The row's leading price column; rows without one sort last
+            private double price(String row) {
+                double price = CommandProcessor.rowPrice(row);
+                return Double.isNaN(price) ? Double.MAX_VALUE : price;
+            }
+
+            @Override
+            public void close() {
+                for (ShardConnection connection : connections.values()) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        // already gone
+                    }
+                }
+            }
+        }
     }
 
-    // Core rental system managing vehicles, users, and rental operations
-    static class RentalSystem {
-        private List<Vehicle> vehicles;
-        private Map<String, User> users;
-        private User currentUser;
-        private static final String USER_FILE = "users.txt";
+    // Micro-benchmarks for the RentalSystem hot paths, run with "java Main --bench [fleet sizes...]".
+    // For each size a synthetic fleet and user base are written to a temp directory. Each operation
+    // is then warmed up and timed on one thread and on every core, reporting throughput, mean
+    // latency and bytes allocated per operation from the JVM's per-thread allocation counters
+    // (calling threads only, so password hashing done on the hasher pool is not included).
+    static class Benchmarks {
+        private static final long WARMUP_MS = Long.getLong("rental.bench.warmupMs", 1_000L);
+        private static final long MEASURE_MS = Long.getLong("rental.bench.measureMs", 2_000L);
+        private static final int[] DEFAULT_SIZES = {1_000, 100_000, 1_000_000};
 
-        public RentalSystem() {
-            vehicles = new ArrayList<>();
-            users = new HashMap<>();
-            loadUsers();
-            vehicles.add(new Car("Civic", "Honda", 50.0, true));
-            vehicles.add(new Car("Corolla", "Toyota", 45.0, true));
-            vehicles.add(new Motorcycle("Ninja", "Kawasaki", 35.0, true));
-            users.put("admin", new User("admin", "admin123"));
+        // One benchmarked call; i counts the calls made by this thread
+        interface Operation {
+            void run(RentalSystem system, Session session, int thread, long i) throws Exception;
         }
 
-        // Persistent storage operations
-        private void loadUsers() {
-            try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2) {
-                        users.put(parts[0], new User(parts[0], parts[1]));
+        public static void run(String[] args) throws Exception {
+            int[] sizes = args.length == 0 ? DEFAULT_SIZES : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int size : sizes) {
+                Path dir = Files.createTempDirectory("rental-bench");
+                try {
+                    System.out.printf("%n== %,d vehicles / %,d users ==%n", size, size);
+                    populate(dir, size);
+                    System.out.printf("%-26s %7s %14s %14s %12s%n", "Benchmark", "Threads", "ops/s", "ns/op", "B/op");
+                    benchmarkStartup(dir);
+                    RentalSystem system = new RentalSystem(dir);
+                    try {
+                        for (int threads : cores > 1 ? new int[]{1, cores} : new int[]{1}) {
+                            runAll(system, size, threads);
+                        }
+                    } finally {
+                        system.close();
                     }
+                } finally {
+                    deleteRecursively(dir);
                 }
-            } catch (IOException e) {
-                System.out.println("Warning: Could not load users file.");
             }
         }
 
-        private void saveUsers() {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(USER_FILE))) {
-                for (User user : users.values()) {
-                    writer.write(user.getUsername() + ":" + user.password + "\n");
+        // Users are written straight to the snapshot as legacy entries; the fleet goes through addVehicle
+        private static void populate(Path dir, int size) throws IOException {
+            try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve(RentalSystem.USER_FILE))) {
+                for (int i = 0; i < size; i++) {
+                    writer.write("bench" + i + ":pw" + i + "\n");
                 }
-            } catch (IOException e) {
-                System.out.println("Error: Could not save users to file.");
             }
+            RentalSystem system = new RentalSystem(dir);
+            for (int i = 0; i < size; i++) {
+                system.addVehicle(i % 2 == 0
+                        ? new Car("Model" + i, "Brand" + (i % 50), 20 + i % 80, i % 3 == 0)
+                        : new Motorcycle("Model" + i, "Brand" + (i % 50), 10 + i % 40, i % 3 == 0));
+            }
+            system.close();
         }
 
-        // User management methods
-        public void registerUser(String username, String password) {
-            if (!users.containsKey(username)) {
-                users.put(username, new User(username, password));
-                saveUsers();
+        private static void benchmarkStartup(Path dir) {
+            int rounds = 3;
+            long elapsed = 0;
+            long allocated = 0;
+            for (int i = 0; i < rounds; i++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                new RentalSystem(dir).close();
+                elapsed += System.nanoTime() - start;
+                allocated += allocatedBytes() - bytes;
             }
+            report("startup (users+fleet)", 1, rounds, elapsed, allocated);
         }
 
-        public boolean isUserExists(String username) {
-            return users.containsKey(username);
+        private static void runAll(RentalSystem system, int size, int threads) throws Exception {
+            AtomicLong registered = new AtomicLong();
+            measure("login", system, threads, (s, session, t, i) ->
+                    s.login("bench" + t, "pw" + t));
+            measure("getAvailableVehicles", system, threads, (s, session, t, i) -> {
+                int afterId = ThreadLocalRandom.current().nextInt(size);
+                int seen = 0;
+                for (Iterator<Vehicle> it = s.getAvailableVehicles(afterId).iterator(); seen < PAGE_SIZE && it.hasNext(); seen++) {
+                    it.next();
+                }
+            });
+            measure("searchVehicles", system, threads, (s, session, t, i) -> {
+                int bucket = ThreadLocalRandom.current().nextInt(50);
+                s.searchVehicles(new VehicleQuery().brand("Brand" + bucket).maxRate(60).limit(PAGE_SIZE));
+            });
+            measure("rentVehicle+returnVehicle", system, threads, (s, session, t, i) -> {
+                if (s.rentVehicle(session, 1 + ThreadLocalRandom.current().nextInt(size), 3)) {
+                    s.returnVehicle(session);
+                }
+            });
+            measure("getUserRentedVehicle", system, threads, new Operation() {
+                public void run(RentalSystem s, Session session, int t, long i) {
+                    if (i == 0) {
+                        while (!s.rentVehicle(session, 1 + ThreadLocalRandom.current().nextInt(size), 3)) { }
+                    }
+                    s.getUserRentedVehicle(session);
+                }
+            });
+            for (int t = 0; t < threads; t++) {
+                system.returnVehicle(system.login("bench" + t, "pw" + t));
+            }
+            measure("registerUser", system, threads, (s, session, t, i) ->
+                    s.registerUser("new" + size + "-" + registered.incrementAndGet(), "pw"));
         }
 
-        public boolean login(String username, String password) {
-            User user = users.get(username);
-            if (user != null && user.authenticate(password)) {
-                currentUser = user;
-                return true;
+        // Runs the operation on the given number of threads, each with its own session,
+        // for the warmup period and then the measurement period
+        private static void measure(String name, RentalSystem system, int threads, Operation operation) throws Exception {
+            Session[] sessions = new Session[threads];
+            for (int t = 0; t < threads; t++) {
+                sessions[t] = system.login("bench" + t, "pw" + t);
             }
-            return false;
-        }
+            long[] ops = new long[threads];
+            long[] allocated = new long[threads];
+            CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+            AtomicBoolean measuring = new AtomicBoolean();
+            AtomicBoolean running = new AtomicBoolean(true);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread worker = new Thread(() -> {
+                    try {
+                        barrier.await();
+                        long i = 0;
+                        while (!measuring.get()) operation.run(system, sessions[thread], thread, i++);
+                        long bytes = allocatedBytes();
+                        long count = 0;
+                        while (running.get()) {
+                            operation.run(system, sessions[thread], thread, i++);
+                            count++;
+                        }
+                        allocated[thread] = allocatedBytes() - bytes;
+                        ops[thread] = count;
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+            barrier.await();
+            Thread.sleep(WARMUP_MS);
+            measuring.set(true);
+            long start = System.nanoTime();
+            Thread.sleep(MEASURE_MS);
+            running.set(false);
+            for (Thread worker : workers) worker.join();
+            long elapsed = System.nanoTime() - start;
 
-        public boolean canRentVehicle() {
-            return currentUser != null && !currentUser.hasActiveRental();
+            long totalOps = 0;
+            long totalBytes = 0;
+            for (int t = 0; t < threads; t++) {
+                totalOps += ops[t];
+                totalBytes += allocated[t];
+            }
+            report(name, threads, totalOps, elapsed * threads, totalBytes);
         }
 
-        public List<Vehicle> getAvailableVehicles() {
-            List<Vehicle> availableVehicles = new ArrayList<>();
-            for (Vehicle v : vehicles) {
-                if (v.isAvailable()) {
-                    availableVehicles.add(v);
-                }
-            }
-            return availableVehicles;
+        // threadNanos is wall time summed over threads, so ns/op is the mean latency per call
+        private static void report(String name, int threads, long ops, long threadNanos, long bytes) {
+            double wallSeconds = threadNanos / (double) threads / 1e9;
+            System.out.printf("%-26s %7d %,14.0f %,14.0f %,12d%n", name, threads,
+                    ops / wallSeconds, ops == 0 ? 0.0 : threadNanos / (double) ops, ops == 0 ? 0 : bytes / ops);
         }
 
-        // Vehicle rental operations
-        public boolean rentVehicle(int index, int days) {
-            List<Vehicle> availableVehicles = getAvailableVehicles();
-            if (index >= 0 && index < availableVehicles.size() && canRentVehicle()) {
-                Vehicle vehicle = availableVehicles.get(index);
-                vehicle.setAvailable(false);
-                vehicle.setRenter(currentUser);
-                currentUser.setActiveRental(true);
-                return true;
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
             }
-            return false;
+            return 0;
         }
 
-        public Vehicle getUserRentedVehicle() {
-            if (currentUser == null) return null;
-            for (Vehicle v : vehicles) {
-                if (!v.isAvailable() && v.getRenter() == currentUser) {
-                    return v;
+        // Compares the heap footprint and a filtered scan of the fleet held as a list of Vehicle
+        // objects against the same fleet in a CompactFleet, run with "java Main --bench-fleet [sizes...]"
+        public static void runFleet(String[] args) {
+            int[] sizes = args.length == 0 ? new int[]{100_000, 1_000_000, 10_000_000}
+                    : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+            for (int size : sizes) {
+                System.out.printf("%n== %,d vehicles ==%n", size);
+                System.out.printf("%-26s %16s %12s %12s%n", "Representation", "heap bytes", "B/vehicle", "ms/scan");
+                VehicleQuery query = new VehicleQuery().brand("Brand7").maxRate(60);
+
+                long before = usedHeap();
+                List<Vehicle> list = new ArrayList<>();
+                for (int i = 0; i < size; i++) list.add(syntheticVehicle(i));
+                long listBytes = usedHeap() - before;
+                double listMillis = timeScan(() -> {
+                    int matches = 0;
+                    for (Vehicle v : list) {
+                        if (query.matches(v)) matches++;
+                    }
+                    return matches;
+                });
+                System.out.printf("%-26s %,16d %,12.1f %,12.2f%n", "ArrayList<Vehicle>", listBytes,
+                        listBytes / (double) size, listMillis);
+                list.clear();
+
+                before = usedHeap();
+                CompactFleet fleet = new CompactFleet(size);
+                for (int i = 0; i < size; i++) {
+                    Vehicle vehicle = syntheticVehicle(i);
+                    vehicle.setId(i + 1);
+                    fleet.add(vehicle);
                 }
+                long compactBytes = usedHeap() - before;
+                double compactMillis = timeScan(() -> fleet.search(query).size());
+                System.out.printf("%-26s %,16d %,12.1f %,12.2f%n", "CompactFleet", compactBytes,
+                        compactBytes / (double) size, compactMillis);
             }
-            return null;
         }
 
-        public void returnVehicle() {
-            Vehicle rentedVehicle = getUserRentedVehicle();
-            if (rentedVehicle != null) {
-                rentedVehicle.setAvailable(true);
-                rentedVehicle.setRenter(null);
-                currentUser.setActiveRental(false);
-            }
+        // Brand and model strings are built per vehicle, as they would be when read from a file
+        private static Vehicle syntheticVehicle(int i) {
+            return i % 2 == 0
+                    ? new Car("Model" + (i % 5_000), "Brand" + (i % 50), 20 + i % 80, i % 3 == 0)
+                    : new Motorcycle("Model" + (i % 5_000), "Brand" + (i % 50), 10 + i % 40, i % 3 == 0);
         }
 
-        public User getCurrentUser() { return currentUser; }
+        // Keeps scan results observable so the JIT cannot drop the scans
+        private static volatile int scanSink;
 
-        public boolean isAdmin() {
-            return currentUser != null && currentUser.getUsername().equals("admin");
+        // Mean time of one scan after a few warmup scans
+        private static double timeScan(Callable<Integer> scan) {
+            try {
+                for (int i = 0; i < 5; i++) scanSink += scan.call();
+                int rounds = 10;
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) scanSink += scan.call();
+                return (System.nanoTime() - start) / 1e6 / rounds;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
         }
 
-        // Admin operations
-        public void addVehicle(Vehicle vehicle) {
-            vehicles.add(vehicle);
+        private static long usedHeap() {
+            for (int i = 0; i < 3; i++) System.gc();
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
         }
 
-        public boolean removeVehicle(int index) {
-            List<Vehicle> availableVehicles = getAvailableVehicles();
-            if (index >= 0 && index < availableVehicles.size()) {
-                vehicles.remove(availableVehicles.get(index));
-                return true;
+        private static void deleteRecursively(Path dir) throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    if (Files.isDirectory(file)) {
+                        deleteRecursively(file);
+                    } else {
+                        Files.delete(file);
+                    }
+                }
             }
-            return false;
+            Files.delete(dir);
         }
     }
 
@@ -256,14 +4994,141 @@ public class Main {
         }
     }
 
-    public static void main(String[] args) {
+    private static final int PAGE_SIZE = 10;
+
+    // Prints one page of available vehicles after the given ID; returns the last ID shown, or -1 on the last page
+    private static int printAvailablePage(RentalSystem rentalSystem, int afterId) {
+        Iterator<Vehicle> it = rentalSystem.getAvailableVehicles(afterId).iterator();
+        int lastId = afterId;
+        for (int shown = 0; shown < PAGE_SIZE && it.hasNext(); shown++) {
+            Vehicle v = it.next();
+            System.out.println(v.getId() + ": " + v);
+            lastId = v.getId();
+        }
+        return it.hasNext() ? lastId : -1;
+    }
+
+    // Read-only listing of the available vehicles, one page at a time
+    private static void browseAvailableVehicles(Scanner scanner, RentalSystem rentalSystem) {
+        int afterId = 0;
+        while (true) {
+            clearScreen();
+            System.out.println("Available Vehicles (" + rentalSystem.getAvailableCount() + " total):");
+            afterId = printAvailablePage(rentalSystem, afterId);
+            if (afterId < 0) {
+                System.out.println("\nPress Enter to continue...");
+                scanner.nextLine();
+                return;
+            }
+            System.out.print("\nEnter n for the next page or press Enter to continue: ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("n")) return;
+        }
+    }
+
+    // Pages through the available vehicles and lets the user pick one by ID; returns 0 to go back
+    private static int chooseAvailableVehicle(Scanner scanner, RentalSystem rentalSystem, String prompt) {
+        int afterId = 0;
+        while (true) {
+            System.out.println("Available Vehicles (" + rentalSystem.getAvailableCount() + " total):");
+            int nextAfterId = printAvailablePage(rentalSystem, afterId);
+            System.out.println("0: Back to Menu");
+            System.out.println();
+            System.out.print(prompt + (nextAfterId > 0 ? " (n for next page)" : "") + ": ");
+
+            String input = scanner.nextLine().trim();
+            if (nextAfterId > 0 && input.equalsIgnoreCase("n")) {
+                afterId = nextAfterId;
+                clearScreen();
+                continue;
+            }
+            try {
+                int vehicleId = Integer.parseInt(input);
+                Vehicle vehicle = rentalSystem.getVehicle(vehicleId);
+                if (vehicleId == 0 || (vehicle != null && vehicle.isAvailable())) {
+                    return vehicleId;
+                }
+                System.out.println("No available vehicle with that ID.\n");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid vehicle ID.\n");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmarks.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench-fleet")) {
+            Benchmarks.runFleet(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--http")) {
+            RentalSystem rentalSystem = new RentalSystem();
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            HttpApi api = new HttpApi(rentalSystem, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                api.stop();
+                rentalSystem.close();
+            }));
+            api.start();
+            System.out.println("Listening on port " + port);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--shard")) {
+            // One branch of a sharded deployment, serving routers over TCP
+            int port = Integer.parseInt(args[1]);
+            RentalSystem rentalSystem = new RentalSystem(args.length > 2 ? Paths.get(args[2]) : Paths.get("."));
+            ShardServer server = new ShardServer(rentalSystem, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    // exiting anyway
+                }
+                rentalSystem.close();
+            }));
+            server.start();
+            System.out.println("Shard listening on port " + port);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--router")) {
+            // Commands from stdin routed across the given branches; local branches live under ./branches
+            try (ShardRouter router = new ShardRouter(Arrays.asList(args).subList(1, args.length), Paths.get("branches"));
+                 ShardRouter.Client client = router.connect()) {
+                BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+                Writer output = new BufferedWriter(new OutputStreamWriter(System.out));
+                String line;
+                while ((line = input.readLine()) != null) {
+                    if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+                    client.execute(line).writeTo(output);
+                    if (!input.ready()) output.flush();
+                }
+                output.flush();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            // Scripted mode: commands from a file or stdin, results to stdout
+            RentalSystem rentalSystem = new RentalSystem();
+            try (Reader input = args.length > 1
+                    ? Files.newBufferedReader(Paths.get(args[1]))
+                    : new InputStreamReader(System.in)) {
+                CommandProcessor.runBatch(rentalSystem, input, new OutputStreamWriter(System.out));
+            } finally {
+                rentalSystem.close();
+            }
+            return;
+        }
+
         Scanner scanner = new Scanner(System.in);
         RentalSystem rentalSystem = new RentalSystem();
+        Session session = null;
 
         while (true) {
             // Authentication menu
             clearScreen();
-            if (rentalSystem.getCurrentUser() == null) {
+            if (session == null) {
                 System.out.println("Vehicle Rental System");
                 System.out.println("1. Login");
                 System.out.println("2. Register");
@@ -282,8 +5147,10 @@ public class Main {
                         System.out.print("Password: ");
                         String password = scanner.nextLine();
 
-                        if (!rentalSystem.login(username, password)) {
-                            System.out.println("Invalid credentials!");
+                        LoginResult login = rentalSystem.tryLogin(username, password, null);
+                        session = login.getSession();
+                        if (session == null) {
+                            System.out.println(login.getMessage() + "!");
                             System.out.println("Press Enter to continue...");
                             scanner.nextLine();
                         }
@@ -297,11 +5164,17 @@ public class Main {
                         
                         if (rentalSystem.isUserExists(newUsername)) {
                             System.out.println("Username already exists!");
+                        } else if (!RentalSystem.isValidUsername(newUsername)) {
+                            System.out.println(Registration.INVALID_USERNAME.getMessage() + "!");
                         } else {
                             System.out.print("Enter password: ");
                             String newPassword = scanner.nextLine();
-                            rentalSystem.registerUser(newUsername, newPassword);
-                            System.out.println("Registration successful!");
+                            Registration registration = rentalSystem.tryRegister(newUsername, newPassword);
+                            if (registration == Registration.OK) {
+                                System.out.println("Registration successful!");
+                            } else {
+                                System.out.println(registration.getMessage() + "!");
+                            }
                         }
                         System.out.println("Press Enter to continue...");
                         scanner.nextLine();
@@ -309,6 +5182,7 @@ public class Main {
 
                     case 3:
                         System.out.println("Goodbye!");
+                        rentalSystem.close();
                         scanner.close();
                         return;
                 }
@@ -317,27 +5191,33 @@ public class Main {
 
             // Admin interface
             clearScreen();
-            if (rentalSystem.isAdmin()) {
+            if (rentalSystem.isAdmin(session)) {
                 System.out.println("Welcome, Administrator");
                 System.out.println("1. View all vehicles");
                 System.out.println("2. Add new vehicle");
                 System.out.println("3. Remove vehicle");
-                System.out.println("4. Logout");
+                System.out.println("4. Import vehicles from CSV");
+                System.out.println("5. Export vehicles to CSV");
+                System.out.println("6. View metrics");
+                System.out.println("7. Rental history reports");
+                System.out.println("8. Logout");
                 System.out.println();
                 System.out.print("Choose an option: ");
 
-                int choice = getValidIntInput(scanner, 1, 4);
+                int choice = getValidIntInput(scanner, 1, 8);
 
                 switch (choice) {
                     case 1:
                         clearScreen();
-                        List<Vehicle> allVehicles = rentalSystem.vehicles;
-                        System.out.println("All Vehicles:");
-                        for (int i = 0; i < allVehicles.size(); i++) {
-                            Vehicle v = allVehicles.get(i);
-                            System.out.println((i + 1) + ": " + v + 
-                                            (v.isAvailable() ? " (Available)" : 
-                                            " (Rented by: " + v.getRenter().getUsername() + ")"));
+                        System.out.println("All Vehicles (" + rentalSystem.getAvailableCount() + " of "
+                                + rentalSystem.getVehicleCount() + " available):");
+                        for (Vehicle v : rentalSystem.getAvailableVehicles()) {
+                            System.out.println(v.getId() + ": " + v + " (Available)");
+                        }
+                        for (Rental rental : rentalSystem.getActiveRentals()) {
+                            Vehicle v = rental.getVehicle();
+                            System.out.println(v.getId() + ": " + v + " (Rented by: "
+                                    + rental.getRenter().getUsername() + ", " + rental.getDays() + " days)");
                         }
                         System.out.println("\nPress Enter to continue...");
                         scanner.nextLine();
@@ -362,38 +5242,36 @@ public class Main {
                         System.out.print("Enter daily rate: $");
                         double rate = Double.parseDouble(scanner.nextLine());
 
+                        Vehicle newVehicle;
                         if (type == 1) {
                             System.out.print("Has AC? (y/n): ");
                             boolean hasAC = scanner.nextLine().toLowerCase().startsWith("y");
-                            rentalSystem.addVehicle(new Car(model, brand, rate, hasAC));
+                            newVehicle = new Car(model, brand, rate, hasAC);
                         } else {
                             System.out.print("Include helmet? (y/n): ");
                             boolean hasHelmet = scanner.nextLine().toLowerCase().startsWith("y");
-                            rentalSystem.addVehicle(new Motorcycle(model, brand, rate, hasHelmet));
+                            newVehicle = new Motorcycle(model, brand, rate, hasHelmet);
                         }
                         
-                        System.out.println("Vehicle added successfully!");
+                        try {
+                            rentalSystem.addVehicle(newVehicle);
+                            System.out.println("Vehicle added successfully!");
+                        } catch (IllegalArgumentException e) {
+                            System.out.println("Failed to add vehicle: " + e.getMessage());
+                        }
                         System.out.println("Press Enter to continue...");
                         scanner.nextLine();
                         break;
 
                     case 3:
                         clearScreen();
-                        List<Vehicle> availableVehicles = rentalSystem.getAvailableVehicles();
-                        if (availableVehicles.isEmpty()) {
+                        if (rentalSystem.getAvailableCount() == 0) {
                             System.out.println("No available vehicles to remove!");
                         } else {
-                            System.out.println("Available Vehicles:");
-                            for (int i = 0; i < availableVehicles.size(); i++) {
-                                System.out.println((i + 1) + ": " + availableVehicles.get(i));
-                            }
-                            System.out.println((availableVehicles.size() + 1) + ": Back to Menu");
-                            
-                            System.out.print("\nEnter vehicle number to remove: ");
-                            int selection = getValidIntInput(scanner, 1, availableVehicles.size() + 1);
+                            int selection = chooseAvailableVehicle(scanner, rentalSystem, "Enter vehicle ID to remove");
                             
-                            if (selection <= availableVehicles.size()) {
-                                if (rentalSystem.removeVehicle(selection - 1)) {
+                            if (selection != 0) {
+                                if (rentalSystem.removeVehicle(selection)) {
                                     System.out.println("Vehicle removed successfully!");
                                 } else {
                                     System.out.println("Failed to remove vehicle!");
@@ -405,115 +5283,188 @@ public class Main {
                         break;
 
                     case 4:
-                        rentalSystem.currentUser = null;
+                    case 5:
+                        clearScreen();
+                        System.out.print("Enter CSV file path: ");
+                        String path = scanner.nextLine().trim();
+                        CommandProcessor processor = new CommandProcessor(rentalSystem, session);
+                        CommandResult result = choice == 4
+                                ? processor.importFleet(Paths.get(path))
+                                : processor.exportFleet(Paths.get(path));
+                        System.out.println(result.getMessage());
+                        for (String row : result.getRows()) {
+                            System.out.println("  " + row);
+                        }
+                        System.out.println("\nPress Enter to continue...");
+                        scanner.nextLine();
+                        break;
+
+                    case 6:
+                        clearScreen();
+                        System.out.println("System Metrics (latencies in microseconds):");
+                        for (String line : rentalSystem.getMetrics().snapshot()) {
+                            System.out.println(line);
+                        }
+                        System.out.println("\nPress Enter to continue...");
+                        scanner.nextLine();
+                        break;
+
+                    case 7:
+                        clearScreen();
+                        try {
+                            System.out.print("From date (yyyy-mm-dd): ");
+                            LocalDate from = LocalDate.parse(scanner.nextLine().trim());
+                            System.out.print("To date, exclusive (yyyy-mm-dd): ");
+                            LocalDate to = LocalDate.parse(scanner.nextLine().trim());
+                            CommandProcessor reports = new CommandProcessor(rentalSystem, session);
+                            for (CommandResult report : Arrays.asList(reports.revenue(from, to),
+                                    reports.topRenters(from, to, 5), reports.utilization(from, to, 5))) {
+                                System.out.println("\n" + report.getMessage());
+                                for (String row : report.getRows()) {
+                                    System.out.println("  " + row);
+                                }
+                            }
+                        } catch (DateTimeParseException e) {
+                            System.out.println("Invalid date.");
+                        }
+                        System.out.println("\nPress Enter to continue...");
+                        scanner.nextLine();
+                        break;
+
+                    case 8:
+                        session = null;
                         break;
                 }
             } else {
                 // Regular user interface with rental operations
-                System.out.println("Welcome, " + rentalSystem.getCurrentUser().getUsername());
+                System.out.println("Welcome, " + session.getUser().getUsername());
                 System.out.println("1. View available vehicles");
-                System.out.println("2. " + (rentalSystem.getCurrentUser().hasActiveRental() ? "Return vehicle" : "Rent a vehicle"));
-                System.out.println("3. Logout");
+                System.out.println("2. Rent a vehicle");
+                System.out.println("3. Return vehicle");
+                System.out.println("4. Search vehicles");
+                System.out.println("5. Logout");
                 System.out.println();
                 System.out.print("Choose an option: ");
 
-                int choice = getValidIntInput(scanner, 1, 3);
+                int choice = getValidIntInput(scanner, 1, 5);
 
                 switch (choice) {
                     case 1:
+                        browseAvailableVehicles(scanner, rentalSystem);
+                        break;
+
+                    case 2:
                         clearScreen();
-                        List<Vehicle> vehicles = rentalSystem.getAvailableVehicles();
-                        System.out.println("Available Vehicles:");
-                        for (int i = 0; i < vehicles.size(); i++) {
-                            System.out.println((i + 1) + ": " + vehicles.get(i));
+                        // Up to rental.maxActiveRentals vehicles may be out at once
+                        if (!rentalSystem.canRentVehicle(session)) {
+                            System.out.println("You have reached your rental limit!");
+                            System.out.println("Please return a rental before renting another vehicle.");
+                            System.out.println("\nPress Enter to continue...");
+                            scanner.nextLine();
+                            break;
+                        }
+                        
+                        if (rentalSystem.getAvailableCount() == 0) {
+                            System.out.println("No vehicles available for rent!");
+                            System.out.println("Press Enter to continue...");
+                            scanner.nextLine();
+                            break;
+                        }
+                        
+                        int vehicleId = chooseAvailableVehicle(scanner, rentalSystem, "Enter vehicle ID to rent");
+                        
+                        if (vehicleId == 0) {
+                            break;
+                        }
+                        
+                        System.out.print("Enter number of days (1-30): ");
+                        int days = getValidIntInput(scanner, 1, 30);
+                        
+                        if (rentalSystem.rentVehicle(session, vehicleId, days)) {
+                            clearScreen();
+                            Vehicle rentedVehicle = rentalSystem.getVehicle(vehicleId);
+                            Quote quote = rentalSystem.quote(rentedVehicle, days);
+                            
+                            System.out.println("=== Rental Receipt ===");
+                            System.out.println("Vehicle: " + rentedVehicle.getBrand() + " " + rentedVehicle.getModel());
+                            System.out.println("Days rented: " + days);
+                            System.out.println("Base rate: $" + rentedVehicle.getRentalRate() + "/day");
+                            for (Quote.Line line : quote.getLines()) {
+                                System.out.println(line.getLabel() + ": $" + line.getAmount());
+                            }
+                            System.out.println("Total cost: $" + quote.getTotal());
+                            System.out.println("\nThank you for your rental!");
+                        } else {
+                            System.out.println("Rental failed!");
                         }
                         System.out.println("\nPress Enter to continue...");
                         scanner.nextLine();
                         break;
 
-                    case 2:
+                    case 3:
                         clearScreen();
-                        if (rentalSystem.getCurrentUser().hasActiveRental()) {
-                            Vehicle rentedVehicle = rentalSystem.getUserRentedVehicle();
+                        List<Rental> userRentals = new ArrayList<>(rentalSystem.getUserRentals(session));
+                        if (userRentals.isEmpty()) {
+                            System.out.println("You have no vehicle to return!");
+                        } else if (userRentals.size() == 1) {
+                            Vehicle rentedVehicle = userRentals.get(0).getVehicle();
                             System.out.println("Currently rented vehicle: " + rentedVehicle);
                             System.out.print("Are you sure you want to return this vehicle? (y/n): ");
                             if (scanner.nextLine().toLowerCase().startsWith("y")) {
-                                rentalSystem.returnVehicle();
+                                rentalSystem.returnVehicle(session, rentedVehicle.getId());
                                 System.out.println("Vehicle returned successfully!");
                             }
                         } else {
-                            if (!rentalSystem.canRentVehicle()) {
-                                System.out.println("You already have an active rental!");
-                                System.out.println("Please return your current rental before renting another vehicle.");
-                                System.out.println("\nPress Enter to continue...");
-                                scanner.nextLine();
-                                break;
+                            System.out.println("Currently rented vehicles:");
+                            for (Rental rental : userRentals) {
+                                System.out.println(rental.getVehicle().getId() + ": " + rental.getVehicle());
                             }
-                            
-                            vehicles = rentalSystem.getAvailableVehicles();
-                            if (vehicles.isEmpty()) {
-                                System.out.println("No vehicles available for rent!");
-                                System.out.println("Press Enter to continue...");
-                                scanner.nextLine();
-                                break;
-                            }
-                            
-                            System.out.println("Available Vehicles:");
-                            for (int i = 0; i < vehicles.size(); i++) {
-                                System.out.println((i + 1) + ": " + vehicles.get(i));
-                            }
-                            System.out.println((vehicles.size() + 1) + ": Back to Menu");
-                            
-                            System.out.println();
-                            System.out.print("Enter your choice: ");
-                            int selection = getValidIntInput(scanner, 1, vehicles.size() + 1);
-                            
-                            if (selection == vehicles.size() + 1) {
-                                break;
+                            System.out.print("Enter vehicle ID to return (0 to cancel): ");
+                            int returnId = getValidIntInput(scanner, 0, Integer.MAX_VALUE);
+                            if (returnId != 0) {
+                                System.out.println(rentalSystem.returnVehicle(session, returnId) != null
+                                        ? "Vehicle returned successfully!" : "You are not renting that vehicle!");
                             }
-                            
-                            int index = selection - 1;
-                            
-                            System.out.print("Enter number of days (1-30): ");
-                            int days = getValidIntInput(scanner, 1, 30);
-                            
-                            if (rentalSystem.rentVehicle(index, days)) {
-                                clearScreen();
-                                Vehicle rentedVehicle = vehicles.get(index);
-                                double baseCost = rentedVehicle.calculateRentalCost(days);
-                                double additionalCost = 0;
-                                String additionalInfo = "";
-                                
-                                if (rentedVehicle instanceof Car) {
-                                    Car car = (Car) rentedVehicle;
-                                    additionalCost = car.hasAC ? 5 * days : 0;
-                                    if (additionalCost > 0) additionalInfo = "AC charge: $" + additionalCost;
-                                } else if (rentedVehicle instanceof Motorcycle) {
-                                    Motorcycle motorcycle = (Motorcycle) rentedVehicle;
-                                    additionalCost = motorcycle.getHelmetCost(days);
-                                    if (additionalCost > 0) additionalInfo = "Helmet charge: $" + additionalCost;
-                                }
-                                
-                                System.out.println("=== Rental Receipt ===");
-                                System.out.println("Vehicle: " + rentedVehicle.getBrand() + " " + rentedVehicle.getModel());
-                                System.out.println("Days rented: " + days);
-                                System.out.println("Base rate: $" + rentedVehicle.getRentalRate() + "/day");
-                                System.out.println("Base cost: $" + baseCost);
-                                if (!additionalInfo.isEmpty()) {
-                                    System.out.println(additionalInfo);
-                                }
-                                System.out.println("Total cost: $" + (baseCost + additionalCost));
-                                System.out.println("\nThank you for your rental!");
-                            } else {
-                                System.out.println("Rental failed!");
+                        }
+                        System.out.println("\nPress Enter to continue...");
+                        scanner.nextLine();
+                        break;
+
+                    case 4:
+                        clearScreen();
+                        System.out.println("=== Search Vehicles ===");
+                        VehicleQuery query = new VehicleQuery().limit(PAGE_SIZE * 2);
+                        System.out.print("Brand (blank for any): ");
+                        String searchBrand = scanner.nextLine().trim();
+                        if (!searchBrand.isEmpty()) query.brand(searchBrand);
+                        System.out.print("Type - 1. Car, 2. Motorcycle (blank for any): ");
+                        String searchType = scanner.nextLine().trim();
+                        if (searchType.equals("1")) query.motorcycle(false);
+                        if (searchType.equals("2")) query.motorcycle(true);
+                        System.out.print("Maximum daily rate (blank for any): $");
+                        String maxRate = scanner.nextLine().trim();
+                        try {
+                            if (!maxRate.isEmpty()) query.maxRate(Double.parseDouble(maxRate));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid rate, searching all rates.");
+                        }
+
+                        List<Vehicle> matches = rentalSystem.searchVehicles(query);
+                        System.out.println();
+                        if (matches.isEmpty()) {
+                            System.out.println("No matching vehicles available.");
+                        } else {
+                            System.out.println("Matching Vehicles (cheapest first):");
+                            for (Vehicle v : matches) {
+                                System.out.println(v.getId() + ": " + v);
                             }
                         }
                         System.out.println("\nPress Enter to continue...");
                         scanner.nextLine();
                         break;
 
-                    case 3:
-                        rentalSystem.currentUser = null;
+                    case 5:
+                        session = null;
                         break;
                 }
             }